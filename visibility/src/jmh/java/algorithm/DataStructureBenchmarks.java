@@ -3,8 +3,10 @@ package algorithm;
 import javafx.geometry.Point2D;
 import org.jooq.lambda.Seq;
 import org.openjdk.jmh.annotations.*;
+import visibility.algorithm.BuildOptions;
 import visibility.algorithm.KDTree;
 import visibility.algorithm.NaiveIntersection;
+import visibility.algorithm.OffHeapKDTree;
 import visibility.osm.OSMGeometryParser;
 import visibility.types.BoundingRectangle;
 import visibility.types.Segment;
@@ -28,16 +30,27 @@ public class DataStructureBenchmarks {
     public static class MapState {
         private PrimitiveIterator.OfDouble x;
         private PrimitiveIterator.OfDouble y;
+        private PrimitiveIterator.OfDouble offset;
         public final SpatialDataStructure kdTree;
+        // Only built for the states benchmarking them, null otherwise
+        public final SpatialDataStructure kdTreeWithRopes;
+        public final OffHeapKDTree offHeapKdTree;
         public final SpatialDataStructure naive;
+        public final List<Triangle> triangles;
         public final BoundingRectangle bounds;
         public Segment seg;
+        public Segment shortSeg;
 
-        public MapState(String name) {
+        /**
+         * @param variants Whether to build the tree with ropes and the off-heap tree besides the plain one
+         */
+        public MapState(String name, boolean variants) {
             System.gc();
             try (InputStream file = new GZIPInputStream(this.getClass().getResourceAsStream(name))) {
-                List<Triangle> triangles = new OSMGeometryParser().parseFile(file);
+                this.triangles = new OSMGeometryParser().parseFile(file);
                 this.kdTree = KDTree.fromTriangles(triangles);
+                this.kdTreeWithRopes = variants ? KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withRopes(true)) : null;
+                this.offHeapKdTree = variants ? ((KDTree) kdTree).toOffHeap() : null;
                 this.naive = NaiveIntersection.fromTriangles(triangles);
                 this.bounds = Seq.seq(triangles)
                         .map(BoundingRectangle::fromPoints)
@@ -48,10 +61,22 @@ public class DataStructureBenchmarks {
             }
         }
 
+        @TearDown(Level.Trial)
+        public void reportMailboxing() {
+            KDTree tree = (KDTree) kdTree;
+            System.out.println(String.format("Mailboxing skipped %d of %d triangle tests",
+                    tree.getSkippedTriangleTests(),
+                    tree.getSkippedTriangleTests() + tree.getTriangleTests()));
+            if (offHeapKdTree != null) {
+                System.out.println(String.format("Off-heap tree occupies %d bytes", offHeapKdTree.getOffHeapBytes()));
+            }
+        }
+
         @Setup(Level.Iteration)
         public void resetRandom() {
             x = new Random(0).doubles(bounds.min.getX(), bounds.max.getX()).iterator();
             y = new Random(0).doubles(bounds.min.getY(), bounds.max.getY()).iterator();
+            offset = new Random(0).doubles(-0.01, 0.01).iterator();
         }
 
         @Setup(Level.Invocation)
@@ -59,43 +84,118 @@ public class DataStructureBenchmarks {
             Point2D s = new Point2D(x.next(), y.next());
             Point2D e = new Point2D(x.next(), y.next());
             seg = new Segment(s, e);
+            // Short segments span about 1% of the map
+            Point2D extent = bounds.extent();
+            shortSeg = new Segment(s, s.add(offset.next() * extent.getX(), offset.next() * extent.getY()));
         }
     }
 
     @State(Scope.Thread)
     public static class SmallState extends MapState {
         public SmallState() {
-            super("/small.osm.gz");
+            super("/small.osm.gz", false);
         }
     }
 
     @State(Scope.Thread)
     public static class MediumState extends MapState {
         public MediumState() {
-            super("/medium.osm.gz");
+            this(true);
+        }
+
+        protected MediumState(boolean variants) {
+            super("/medium.osm.gz", variants);
         }
     }
 
     @State(Scope.Thread)
     public static class LargeState extends MapState {
         public LargeState() {
-            super("/large.osm.gz");
+            super("/large.osm.gz", true);
         }
     }
 
     @State(Scope.Thread)
     public static class VeryLargeState extends MapState {
         public VeryLargeState() {
-            super("/very large.osm.gz");
+            super("/very large.osm.gz", false);
         }
     }
 
+    /**
+     * A tree of the medium map built by each strategy, to compare build and query times.
+     */
+    @State(Scope.Thread)
+    public static class StrategyState extends MediumState {
+        @Param({"SAH", "SAH_RESORTING", "BINNED_SAH", "SPATIAL_MEDIAN", "OBJECT_MEDIAN"})
+        public BuildOptions.Strategy strategy;
+
+        public BuildOptions options;
+        public KDTree strategyTree;
+
+        public StrategyState() {
+            super(false);
+        }
+
+        @Setup(Level.Trial)
+        public void build() {
+            options = BuildOptions.DEFAULT.withStrategy(strategy);
+            strategyTree = KDTree.fromTriangles(triangles, options.withBuildReport(true));
+            System.out.println(strategy + ":\n" + strategyTree.getBuildReport());
+        }
+    }
+
+    @Benchmark
+    public KDTree strategyBuildMedium(StrategyState state) {
+        return KDTree.fromTriangles(state.triangles, state.options);
+    }
+
+    @Benchmark
+    public Point2D strategyPseudoRandomlyMedium(StrategyState state) {
+        return state.strategyTree.intersectWith(state.seg);
+    }
+
     @Benchmark
     public Point2D kdTreeNoIntersection(LargeState state) {
         // This is the worst case
         return state.kdTree.intersectWith(NO_INTERSECTION);
     }
 
+    @Benchmark
+    public Point2D kdTreeWithRopesNoIntersection(LargeState state) {
+        return state.kdTreeWithRopes.intersectWith(NO_INTERSECTION);
+    }
+
+    @Benchmark
+    public Point2D kdTreeWithRopesPseudoRandomlyLarge(LargeState state) {
+        return state.kdTreeWithRopes.intersectWith(state.seg);
+    }
+
+    @Benchmark
+    public Point2D kdTreeWithRopesPseudoRandomlyMedium(MediumState state) {
+        return state.kdTreeWithRopes.intersectWith(state.seg);
+    }
+
+    @Benchmark
+    public Point2D kdTreeShortSegmentsLarge(LargeState state) {
+        return state.kdTree.intersectWith(state.shortSeg);
+    }
+
+    @Benchmark
+    public Point2D kdTreeShortSegmentsMedium(MediumState state) {
+        return state.kdTree.intersectWith(state.shortSeg);
+    }
+
+    @Benchmark
+    public Point2D kdTreeWithRopesShortSegmentsLarge(LargeState state) {
+        return state.kdTreeWithRopes.intersectWith(state.shortSeg);
+    }
+
+    @Benchmark
+    public Point2D kdTreeWithRopesShortSegmentsMedium(MediumState state) {
+        return state.kdTreeWithRopes.intersectWith(state.shortSeg);
+    }
+
     @Benchmark
     public Point2D kdTreePseudoRandomlyVeryLarge(VeryLargeState state) {
         return state.kdTree.intersectWith(state.seg);
@@ -111,6 +211,16 @@ public class DataStructureBenchmarks {
         return state.kdTree.intersectWith(state.seg);
     }
 
+    @Benchmark
+    public Point2D offHeapKdTreePseudoRandomlyLarge(LargeState state) {
+        return state.offHeapKdTree.intersectWith(state.seg);
+    }
+
+    @Benchmark
+    public Point2D offHeapKdTreePseudoRandomlyMedium(MediumState state) {
+        return state.offHeapKdTree.intersectWith(state.seg);
+    }
+
     @Benchmark
     public Point2D kdTreePseudoRandomlySmall(SmallState state) {
         return state.kdTree.intersectWith(state.seg);
@@ -0,0 +1,101 @@
+package algorithm;
+
+import javafx.geometry.Point2D;
+import org.jooq.lambda.Seq;
+import org.openjdk.jmh.annotations.*;
+import visibility.algorithm.KDTree;
+import visibility.algorithm.ParallelQueries;
+import visibility.osm.OSMGeometryParser;
+import visibility.types.BoundingRectangle;
+import visibility.types.Segment;
+import visibility.types.Triangle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Throughput of {@link ParallelQueries} on batches of random segments, by number of threads.
+ * Divide the time per batch by BATCH_SIZE for the time per query.
+ */
+public class ParallelQueryBenchmarks {
+    public static final int BATCH_SIZE = 4096;
+
+    @State(Scope.Benchmark)
+    public static class BatchState {
+        @Param({"1", "2", "4", "8"})
+        public int threads;
+
+        private final String name;
+        private ForkJoinPool pool;
+        public ParallelQueries queries;
+        public Segment[] segments;
+        public double[] distances;
+
+        public BatchState(String name) {
+            this.name = name;
+        }
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            System.gc();
+            try (InputStream file = new GZIPInputStream(this.getClass().getResourceAsStream(name))) {
+                List<Triangle> triangles = new OSMGeometryParser().parseFile(file);
+                BoundingRectangle bounds = Seq.seq(triangles)
+                        .map(BoundingRectangle::fromPoints)
+                        .foldLeft(BoundingRectangle.EMPTY, BoundingRectangle::merge);
+                Random random = new Random(0);
+                segments = new Segment[BATCH_SIZE];
+                for (int i = 0; i < segments.length; i++) {
+                    segments[i] = new Segment(randomPoint(random, bounds), randomPoint(random, bounds));
+                }
+                distances = new double[BATCH_SIZE];
+                pool = new ForkJoinPool(threads);
+                queries = ParallelQueries.of(KDTree.fromTriangles(triangles), pool, ParallelQueries.DEFAULT_CHUNK_SIZE);
+            } catch (IOException e) {
+                System.err.println(e.toString()); // We can't handle that anyway. This is surely an error in project config
+                throw new RuntimeException(e);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+        }
+
+        private static Point2D randomPoint(Random random, BoundingRectangle bounds) {
+            return new Point2D(
+                    bounds.min.getX() + random.nextDouble() * (bounds.max.getX() - bounds.min.getX()),
+                    bounds.min.getY() + random.nextDouble() * (bounds.max.getY() - bounds.min.getY()));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MediumState extends BatchState {
+        public MediumState() {
+            super("/medium.osm.gz");
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LargeState extends BatchState {
+        public LargeState() {
+            super("/large.osm.gz");
+        }
+    }
+
+    @Benchmark
+    public double[] kdTreeBatchMedium(MediumState state) {
+        state.queries.intersectAll(state.segments, state.distances);
+        return state.distances;
+    }
+
+    @Benchmark
+    public double[] kdTreeBatchLarge(LargeState state) {
+        state.queries.intersectAll(state.segments, state.distances);
+        return state.distances;
+    }
+}
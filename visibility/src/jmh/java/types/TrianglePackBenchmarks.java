@@ -0,0 +1,103 @@
+package types;
+
+import javafx.geometry.Point2D;
+import org.openjdk.jmh.annotations.*;
+import visibility.types.Intersection;
+import visibility.types.Segment;
+import visibility.types.Triangle;
+import visibility.types.TrianglePackKernel;
+
+import java.util.Objects;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+public class TrianglePackBenchmarks {
+    private static final int TRIANGLES = 64;
+
+    @State(Scope.Thread)
+    public static class Pack {
+        public final Triangle[] triangles = new Triangle[TRIANGLES];
+        public final double[] ax = new double[TRIANGLES];
+        public final double[] ay = new double[TRIANGLES];
+        public final double[] bx = new double[TRIANGLES];
+        public final double[] by = new double[TRIANGLES];
+        public final double[] cx = new double[TRIANGLES];
+        public final double[] cy = new double[TRIANGLES];
+        private PrimitiveIterator.OfDouble d;
+        public Segment seg;
+
+        public Pack() {
+            // Small triangles scattered over the same area as the segments, like in a leaf
+            PrimitiveIterator.OfDouble d = new Random(42).doubles(0, 5).iterator();
+            for (int i = 0; i < TRIANGLES; i++) {
+                Point2D a = new Point2D(d.next(), d.next());
+                Triangle t = new Triangle(a, a.add(d.next() / 5, d.next() / 5), a.add(d.next() / 5, -d.next() / 5));
+                triangles[i] = t;
+                ax[i] = t.a.getX();
+                ay[i] = t.a.getY();
+                bx[i] = t.b.getX();
+                by[i] = t.b.getY();
+                cx[i] = t.c.getX();
+                cy[i] = t.c.getY();
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void resetRandom() {
+            d = new Random(0).doubles(0, 5).iterator();
+        }
+
+        @Setup(Level.Invocation)
+        public void newSegment() {
+            Point2D s = new Point2D(d.next(), d.next());
+            Point2D e = new Point2D(d.next(), d.next());
+            seg = new Segment(s, e);
+        }
+    }
+
+    @Benchmark
+    public Intersection intersectTrianglesOneByOne(Pack pack) {
+        Intersection min = null;
+        for (Triangle t : pack.triangles) {
+            Intersection i = pack.seg.intersectTriangle(t);
+            if (i != null && (min == null || min.getDistance() > i.getDistance())) {
+                min = i;
+            }
+        }
+        return min;
+    }
+
+    @Benchmark
+    public double distanceToTrianglesOneByOne(Pack pack) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < TRIANGLES; i++) {
+            min = Math.min(min, pack.seg.distanceToTriangle(pack.ax[i], pack.ay[i], pack.bx[i], pack.by[i], pack.cx[i], pack.cy[i]));
+        }
+        return min;
+    }
+
+    @Benchmark
+    public double distanceToTrianglesPackWise(Pack pack) {
+        return pack.seg.distanceToTriangles(pack.ax, pack.ay, pack.bx, pack.by, pack.cx, pack.cy, 0, TRIANGLES);
+    }
+
+    @Benchmark
+    public int linePassesTrianglesScalar(Pack pack) {
+        return linePassesTriangles(pack, TrianglePackKernel.SCALAR);
+    }
+
+    @Benchmark
+    public int linePassesTrianglesVectorized(Pack pack) {
+        return linePassesTriangles(pack, Objects.requireNonNull(TrianglePackKernel.VECTORIZED,
+                "Needs JDK 16 or later, running with --add-modules jdk.incubator.vector"));
+    }
+
+    private static int linePassesTriangles(Pack pack, TrianglePackKernel kernel) {
+        int passes = 0;
+        for (int i = 0; i < TRIANGLES; i += Segment.PACK_SIZE) {
+            passes += Integer.bitCount(pack.seg.linePassesTriangles(kernel,
+                    pack.ax, pack.ay, pack.bx, pack.by, pack.cx, pack.cy, i, i + Segment.PACK_SIZE));
+        }
+        return passes;
+    }
+}
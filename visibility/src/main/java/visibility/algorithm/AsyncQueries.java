@@ -0,0 +1,295 @@
+package visibility.algorithm;
+
+import javafx.geometry.Point2D;
+import visibility.types.Segment;
+import visibility.types.SpatialDataStructure;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Answers queries asynchronously. Queries arriving within a short window of each other are
+ * coalesced into one batch, which goes to {@link SpatialDataStructure#intersectAll(Segment[])}
+ * on an executor. At most a fixed number of queries may be pending, that is waiting for their
+ * batch or being answered, bulk queries included; beyond that, queries fail right away with a
+ * {@link RejectedExecutionException}, so callers can back off. Callers are never blocked.
+ * The data structure must be safe to query from several threads.
+ */
+public class AsyncQueries implements AutoCloseable {
+    private final SpatialDataStructure dataStructure;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final BlockingQueue<Request> pending;
+    // One permit per query that may still be pending
+    private final Semaphore capacity;
+    private final long window;
+    private final int maxBatchSize;
+    private final Thread dispatcher;
+    private volatile boolean closed = false;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedQueries = new LongAdder();
+    private final LongAdder rejectedQueries = new LongAdder();
+
+    private AsyncQueries(SpatialDataStructure dataStructure, ExecutorService executor, boolean ownsExecutor,
+                         int capacity, long window, int maxBatchSize) {
+        if (capacity <= 0 || maxBatchSize <= 0 || window < 0) {
+            throw new IllegalArgumentException("Capacity and batch size must be positive, the window not negative");
+        }
+        this.dataStructure = dataStructure;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.pending = new ArrayBlockingQueue<>(capacity);
+        this.capacity = new Semaphore(capacity);
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+        this.dispatcher = new Thread(this::dispatch, "visibility-query-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Answers batches on a pool with a thread per core. When all of them are busy, batches
+     * queue up for them until capacity is reached and new queries are rejected.
+     * @param capacity The maximum number of pending queries
+     * @param window How long to wait for more queries to join a batch, in nanoseconds
+     * @param maxBatchSize The maximum number of queries per batch
+     */
+    public static AsyncQueries of(SpatialDataStructure dataStructure, int capacity, long window, int maxBatchSize) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                // Every batch holds at least one of the capacity's permits, so the queue never overflows
+                new ArrayBlockingQueue<>(capacity), r -> {
+                    Thread t = new Thread(r, "visibility-query");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        return new AsyncQueries(dataStructure, executor, true, capacity, window, maxBatchSize);
+    }
+
+    /**
+     * Like {@link #of(SpatialDataStructure, int, long, int)}, but answers batches on executor,
+     * which the caller has to shut down.
+     */
+    public static AsyncQueries of(SpatialDataStructure dataStructure, ExecutorService executor,
+                                  int capacity, long window, int maxBatchSize) {
+        return new AsyncQueries(dataStructure, executor, false, capacity, window, maxBatchSize);
+    }
+
+    /**
+     * Asynchronous variant of {@link SpatialDataStructure#intersectWith(Segment)}.
+     */
+    public CompletableFuture<Point2D> intersectWith(Segment s) {
+        Request request = new Request(s, false);
+        enqueue(request);
+        return request.nearest;
+    }
+
+    /**
+     * Asynchronous variant of {@link SpatialDataStructure#isOccluded(Segment)}.
+     */
+    public CompletableFuture<Boolean> isOccluded(Segment s) {
+        Request request = new Request(s, true);
+        enqueue(request);
+        return request.occluded;
+    }
+
+    /**
+     * Asynchronous variant of {@link SpatialDataStructure#intersectAll(Segment[])}. The segments
+     * already form a batch, so they skip the queue and go to the executor directly, but count
+     * towards the capacity like single queries.
+     */
+    public CompletableFuture<Point2D[]> intersectAll(Segment[] segments) {
+        if (closed) {
+            return rejected("Closed");
+        }
+        if (!capacity.tryAcquire(segments.length)) {
+            rejectedQueries.add(segments.length);
+            return rejected("Too many pending queries");
+        }
+        CompletableFuture<Point2D[]> future = new CompletableFuture<>();
+        future.whenComplete((result, t) -> capacity.release(segments.length));
+        try {
+            executor.execute(() -> {
+                batches.increment();
+                batchedQueries.add(segments.length);
+                try {
+                    future.complete(dataStructure.intersectAll(segments));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejectedQueries.add(segments.length);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void enqueue(Request request) {
+        if (closed) {
+            request.fail(new RejectedExecutionException("Closed"));
+        } else if (!capacity.tryAcquire()) {
+            rejectedQueries.increment();
+            request.fail(new RejectedExecutionException("Too many pending queries"));
+        } else {
+            request.future().whenComplete((result, t) -> capacity.release());
+            if (!pending.offer(request)) {
+                // Only if callers completed futures of queries still waiting themselves
+                rejectedQueries.increment();
+                request.fail(new RejectedExecutionException("Too many pending queries"));
+            } else if (closed && pending.remove(request)) {
+                // Closed after the first check, the queue may have been drained for the last time
+                request.fail(new RejectedExecutionException("Closed"));
+            }
+        }
+    }
+
+    private static <T> CompletableFuture<T> rejected(String message) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new RejectedExecutionException(message));
+        return future;
+    }
+
+    private void dispatch() {
+        List<Request> batch = new ArrayList<>();
+        while (!closed || !pending.isEmpty()) {
+            try {
+                Request first = pending.poll(10, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                final long deadline = System.nanoTime() + window;
+                while (batch.size() < maxBatchSize) {
+                    long left = deadline - System.nanoTime();
+                    Request next = left > 0 ? pending.poll(left, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                submit(batch);
+                batch = new ArrayList<>();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        // The queries of the batch close interrupted wait for their batch, too
+        fail(batch);
+        failPending();
+    }
+
+    private void failPending() {
+        List<Request> requests = new ArrayList<>();
+        pending.drainTo(requests);
+        fail(requests);
+    }
+
+    private static void fail(List<Request> requests) {
+        for (Request request : requests) {
+            request.fail(new RejectedExecutionException("Closed"));
+        }
+    }
+
+    private void submit(List<Request> batch) {
+        try {
+            executor.execute(() -> answer(batch));
+        } catch (RejectedExecutionException e) {
+            rejectedQueries.add(batch.size());
+            for (Request request : batch) {
+                request.fail(e);
+            }
+        }
+    }
+
+    private void answer(List<Request> batch) {
+        batches.increment();
+        batchedQueries.add(batch.size());
+        try {
+            List<Request> nearest = new ArrayList<>(batch.size());
+            for (Request request : batch) {
+                if (request.occluded != null) {
+                    request.occluded.complete(dataStructure.isOccluded(request.segment));
+                } else {
+                    nearest.add(request);
+                }
+            }
+            if (!nearest.isEmpty()) {
+                Segment[] segments = new Segment[nearest.size()];
+                for (int i = 0; i < segments.length; i++) {
+                    segments[i] = nearest.get(i).segment;
+                }
+                Point2D[] intersections = dataStructure.intersectAll(segments);
+                for (int i = 0; i < segments.length; i++) {
+                    nearest.get(i).nearest.complete(intersections[i]);
+                }
+            }
+        } catch (Throwable t) {
+            for (Request request : batch) {
+                request.fail(t);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting queries. Queries waiting for their batch fail, batches already
+     * submitted are still answered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Queries enqueued while the dispatcher stopped
+        failPending();
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return The number of queries answered in batches so far, divide by {@link #getBatches()}
+     * for the average batch size
+     */
+    public long getBatchedQueries() {
+        return batchedQueries.sum();
+    }
+
+    public long getRejectedQueries() {
+        return rejectedQueries.sum();
+    }
+
+    /**
+     * A query waiting for its batch. Exactly one of the futures is set.
+     */
+    private static class Request {
+        final Segment segment;
+        final CompletableFuture<Point2D> nearest;
+        final CompletableFuture<Boolean> occluded;
+
+        Request(Segment segment, boolean occlusion) {
+            this.segment = segment;
+            this.nearest = occlusion ? null : new CompletableFuture<>();
+            this.occluded = occlusion ? new CompletableFuture<>() : null;
+        }
+
+        CompletableFuture<?> future() {
+            return nearest != null ? nearest : occluded;
+        }
+
+        void fail(Throwable t) {
+            future().completeExceptionally(t);
+        }
+    }
+}
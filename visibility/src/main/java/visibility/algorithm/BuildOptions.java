@@ -0,0 +1,162 @@
+package visibility.algorithm;
+
+import org.jetbrains.annotations.Nullable;
+import visibility.types.Segment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Options for {@link KDTree#fromTriangles(List, BuildOptions)}.
+ */
+public class BuildOptions {
+    public static final BuildOptions DEFAULT = new BuildOptions(false, false, Strategy.SAH, false, CostModel.DEFAULT, false, false, 0, null);
+
+    /**
+     * The algorithms building the tree.
+     */
+    public enum Strategy {
+        /**
+         * The surface area heuristic, built in O(N log N) by sorting the events only once.
+         */
+        SAH,
+        /**
+         * The surface area heuristic, sorting every node's events anew, in O(N log^2 N).
+         * Builds the same tree as {@link #SAH}.
+         */
+        SAH_RESORTING,
+        /**
+         * The surface area heuristic, only evaluated at a fixed number of evenly spaced planes per node.
+         * Builds in O(N log N) with a smaller constant than {@link #SAH}, but a slightly worse tree.
+         */
+        BINNED_SAH,
+        /**
+         * Splits every node's longer side in half. The fastest to build, but blind to the triangles.
+         */
+        SPATIAL_MEDIAN,
+        /**
+         * Splits every node's longer side so that half of its triangles' centers are on either side.
+         */
+        OBJECT_MEDIAN
+    }
+
+    /**
+     * Whether to link every leaf's faces to its neighbours after the tree is built. Queries
+     * then walk from leaf to leaf along these ropes instead of using a stack.
+     */
+    public final boolean ropes;
+
+    /**
+     * Whether to keep the tree's geometry compactly: Leaves store their triangles' vertices, and inner
+     * nodes their splitting planes, as floats relative to the center of the tree, which halves them.
+     * The triangles are kept once, as doubles, instead of as {@link visibility.types.Triangle}
+     * objects, unless subtrees are deferred. The floats only serve to skip triangles the segment's
+     * line misses, the remaining ones are tested against the doubles, so results are the same as
+     * without. The splitting planes are rounded to what floats can hold while building.
+     */
+    public final boolean compactGeometry;
+
+    /**
+     * How to choose the splitting planes.
+     */
+    public final Strategy strategy;
+
+    /**
+     * Whether to build large subtrees, and the sweeps over large nodes' dimensions, concurrently
+     * in the common fork-join pool. The tree is the same as when built sequentially.
+     * {@link Strategy#SAH_RESORTING} always builds sequentially.
+     */
+    public final boolean parallelBuild;
+
+    /**
+     * The costs the strategies using the surface area heuristic weigh planes by, and the
+     * depth all strategies stop at.
+     */
+    public final CostModel costModel;
+
+    /**
+     * Whether {@link Strategy#SAH} and {@link Strategy#SAH_RESORTING} clip the triangles
+     * straddling a splitting plane to either child's voxel, instead of bounding them by their
+     * bounding rectangles. The children's voxels get tighter and later planes separate their
+     * triangles more often, at the cost of clipping.
+     */
+    public final boolean perfectSplits;
+
+    /**
+     * Whether to collect a {@link BuildReport}, see {@link KDTree#getBuildReport()}
+     */
+    public final boolean buildReport;
+
+    /**
+     * If positive, only the nodes above this depth are built up front. The subtrees at this depth
+     * are built on the first query reaching them, on the querying thread, so the first queries
+     * get slower and the tree becomes queryable sooner. The tree is the same as when built at once,
+     * apart from its {@link BuildReport} and {@link KDTree#getExpectedCost() expected cost}, which
+     * count the deferred subtrees as leaves. 0 builds the whole tree at once.
+     */
+    public final int lazyDepth;
+
+    /**
+     * Queries representative of where the tree will be queried, e.g. a {@link QuerySample}'s,
+     * or null. {@link Strategy#SAH} then weighs the probability of a query visiting a child by
+     * the share of these queries crossing it, instead of only by the child's surface area, which
+     * assumes queries are spread evenly. Where few of them go, the surface area still prevails.
+     */
+    @Nullable
+    public final List<Segment> workload;
+
+    private BuildOptions(boolean ropes, boolean compactGeometry, Strategy strategy, boolean parallelBuild,
+                         CostModel costModel, boolean perfectSplits, boolean buildReport, int lazyDepth,
+                         @Nullable List<Segment> workload) {
+        if (lazyDepth < 0) {
+            throw new IllegalArgumentException("The lazy depth must not be negative");
+        }
+        this.ropes = ropes;
+        this.compactGeometry = compactGeometry;
+        this.strategy = strategy;
+        this.parallelBuild = parallelBuild;
+        this.costModel = costModel;
+        this.perfectSplits = perfectSplits;
+        this.buildReport = buildReport;
+        this.lazyDepth = lazyDepth;
+        this.workload = workload;
+    }
+
+    public BuildOptions withRopes(boolean ropes) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withCompactGeometry(boolean compactGeometry) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withStrategy(Strategy strategy) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withParallelBuild(boolean parallelBuild) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withCostModel(CostModel costModel) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withPerfectSplits(boolean perfectSplits) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withBuildReport(boolean buildReport) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withLazyDepth(int lazyDepth) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth, workload);
+    }
+
+    public BuildOptions withWorkload(@Nullable List<Segment> workload) {
+        return new BuildOptions(ropes, compactGeometry, strategy, parallelBuild, costModel, perfectSplits, buildReport, lazyDepth,
+                workload == null ? null : Collections.unmodifiableList(new ArrayList<>(workload)));
+    }
+}
@@ -0,0 +1,129 @@
+package visibility.algorithm;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What {@link KDTree#fromTriangles(List, BuildOptions)} built and how long it took, see
+ * {@link BuildOptions#withBuildReport(boolean)}. Compare reports to catch changes in the tree's
+ * quality when the input or the builder changes.
+ */
+public class BuildReport {
+    public final int triangles;
+    public final int innerNodes;
+    public final int leaves;
+    public final int emptyLeaves;
+    /**
+     * Leaves standing in for the subtrees below the lazy depth, see {@link BuildOptions#lazyDepth}.
+     * They don't count as empty leaves.
+     */
+    public final int deferredSubtrees;
+    /**
+     * Entries of all leaves, counting triangles in several leaves once per leaf
+     */
+    public final long leafReferences;
+    /**
+     * The number of leaves at each depth, the root being at depth 0
+     */
+    private final long[] leavesByDepth;
+    public final TraversalStatistics.Histogram leafSizes = new TraversalStatistics.Histogram();
+    /**
+     * See {@link KDTree#getExpectedCost()}
+     */
+    public final double expectedCost;
+
+    /**
+     * Wall time in nanoseconds of collecting the triangles' bounds, building the tree,
+     * flattening it into arrays and linking its ropes
+     */
+    public final long prepareTime;
+    public final long buildTime;
+    public final long flattenTime;
+    public final long ropesTime;
+
+    BuildReport(byte[] axes, byte leaf, int[] children, int[] leafSizes, int triangles, int deferredSubtrees, double expectedCost,
+                long prepareTime, long buildTime, long flattenTime, long ropesTime) {
+        long[] leavesByDepth = new long[0];
+        int innerNodes = 0;
+        int emptyLeaves = 0;
+        long leafReferences = 0;
+        if (axes.length > 0) {
+            // Walk the linearized tree, with the depths of the right children still to visit on a stack
+            int[] depths = new int[axes.length];
+            int top = 0;
+            int depth = 0;
+            for (int node = 0; node < axes.length; node++) {
+                if (axes[node] == leaf) {
+                    if (depth >= leavesByDepth.length) {
+                        leavesByDepth = Arrays.copyOf(leavesByDepth, depth + 1);
+                    }
+                    leavesByDepth[depth]++;
+                    this.leafSizes.record(leafSizes[node]);
+                    leafReferences += leafSizes[node];
+                    if (leafSizes[node] == 0) {
+                        emptyLeaves++;
+                    }
+                    depth = top > 0 ? depths[--top] : 0;
+                } else {
+                    innerNodes++;
+                    depths[top++] = ++depth;
+                }
+            }
+        }
+
+        this.triangles = triangles;
+        this.innerNodes = innerNodes;
+        this.leaves = axes.length - innerNodes;
+        this.emptyLeaves = emptyLeaves - deferredSubtrees;
+        this.deferredSubtrees = deferredSubtrees;
+        this.leafReferences = leafReferences;
+        this.leavesByDepth = leavesByDepth;
+        this.expectedCost = expectedCost;
+        this.prepareTime = prepareTime;
+        this.buildTime = buildTime;
+        this.flattenTime = flattenTime;
+        this.ropesTime = ropesTime;
+    }
+
+    /**
+     * @return The number of leaves at depth, 0 beyond the deepest leaf.
+     */
+    public long getLeavesAtDepth(int depth) {
+        return depth < leavesByDepth.length ? leavesByDepth[depth] : 0;
+    }
+
+    public int getMaxDepth() {
+        return leavesByDepth.length - 1;
+    }
+
+    public double getMeanLeafDepth() {
+        long sum = 0;
+        for (int depth = 0; depth < leavesByDepth.length; depth++) {
+            sum += depth * leavesByDepth[depth];
+        }
+        return leaves == 0 ? 0 : sum / (double) leaves;
+    }
+
+    /**
+     * @return How many leaves the average triangle is in, 1 if none is in several.
+     */
+    public double getDuplicationFactor() {
+        return triangles == 0 ? 0 : leafReferences / (double) triangles;
+    }
+
+    public long getTotalTime() {
+        return prepareTime + buildTime + flattenTime + ropesTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("triangles: %d, inner nodes: %d, leaves: %d (%d empty, %d deferred)%n",
+                triangles, innerNodes, leaves, emptyLeaves, deferredSubtrees) +
+                String.format("depth: max %d, mean leaf depth %.2f, leaves by depth %s%n",
+                        getMaxDepth(), getMeanLeafDepth(), Arrays.toString(leavesByDepth)) +
+                "leaf sizes: " + leafSizes + "\n" +
+                String.format("duplication factor: %.3f, expected cost: %.3f%n", getDuplicationFactor(), expectedCost) +
+                String.format("time (ms): prepare %.1f, build %.1f, flatten %.1f, ropes %.1f",
+                        prepareTime / 1e6, buildTime / 1e6, flattenTime / 1e6, ropesTime / 1e6);
+    }
+}
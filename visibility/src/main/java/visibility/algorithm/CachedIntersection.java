@@ -0,0 +1,169 @@
+package visibility.algorithm;
+
+import javafx.geometry.Point2D;
+import visibility.types.Segment;
+import visibility.types.SpatialDataStructure;
+
+/**
+ * Caches the results of another {@link SpatialDataStructure}. Segment ends are snapped to a
+ * grid first, so all segments whose ends fall into the same grid cells share one result,
+ * namely that of the snapped segment (see {@link #quantize(Segment)}). This trades accuracy
+ * in the order of the grid's cell size for not repeating queries for agents which barely move.
+ * In particular, the intersection returned is the snapped segment's and may lie up to half a
+ * cell's diagonal off the segment passed in, even before its start or beyond its end.
+ * The cache is bounded and safe to use from several threads, if the wrapped data structure is.
+ * Results of {@link #isOccluded(Segment)} don't tell the nearest intersection, so
+ * {@link #intersectWith(Segment)} counts them as misses.
+ */
+public class CachedIntersection implements SpatialDataStructure {
+
+    private final SpatialDataStructure inner;
+    private final double cellSize;
+    private final ClockCache<Key, Result> cache;
+
+    private CachedIntersection(SpatialDataStructure inner, double cellSize, int capacity) {
+        if (!(cellSize > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive, got " + cellSize);
+        }
+        this.inner = inner;
+        this.cellSize = cellSize;
+        this.cache = new ClockCache<>(capacity);
+    }
+
+    /**
+     * @param inner The data structure answering cache misses
+     * @param cellSize The edge length of the grid cells segment ends are snapped to
+     * @param capacity The maximum number of segments to remember results for
+     */
+    public static CachedIntersection wrap(SpatialDataStructure inner, double cellSize, int capacity) {
+        return new CachedIntersection(inner, cellSize, capacity);
+    }
+
+    @Override
+    public Point2D intersectWith(Segment s) {
+        Key key = key(s);
+        if (key.isPoint()) {
+            return inner.intersectWith(s);
+        }
+        Result cached = cache.get(key, result -> result.nearestKnown);
+        if (cached != null) {
+            return cached.nearest;
+        }
+        Point2D nearest = inner.intersectWith(snap(key));
+        cache.put(key, new Result(true, nearest, nearest != null));
+        return nearest;
+    }
+
+    @Override
+    public boolean isOccluded(Segment s) {
+        Key key = key(s);
+        if (key.isPoint()) {
+            return inner.isOccluded(s);
+        }
+        Result cached = cache.get(key);
+        if (cached != null) {
+            return cached.occluded;
+        }
+        boolean occluded = inner.isOccluded(snap(key));
+        cache.put(key, new Result(false, null, occluded));
+        return occluded;
+    }
+
+    /**
+     * @return The segment whose result is used for s, i.e. with its ends snapped to the grid.
+     * If both ends snap to the same point, s is neither snapped nor cached.
+     */
+    public Segment quantize(Segment s) {
+        Key key = key(s);
+        return key.isPoint() ? s : snap(key);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public int capacity() {
+        return cache.capacity();
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    public long getEvictions() {
+        return cache.getEvictions();
+    }
+
+    private Key key(Segment s) {
+        return new Key(
+                Math.round(s.getStart().getX() / cellSize),
+                Math.round(s.getStart().getY() / cellSize),
+                Math.round(s.getEnd().getX() / cellSize),
+                Math.round(s.getEnd().getY() / cellSize));
+    }
+
+    private Segment snap(Key key) {
+        return new Segment(
+                new Point2D(key.sx * cellSize, key.sy * cellSize),
+                new Point2D(key.ex * cellSize, key.ey * cellSize));
+    }
+
+    /**
+     * A segment's ends in grid cells.
+     */
+    private static class Key {
+        final long sx, sy, ex, ey;
+
+        Key(long sx, long sy, long ex, long ey) {
+            this.sx = sx;
+            this.sy = sy;
+            this.ex = ex;
+            this.ey = ey;
+        }
+
+        boolean isPoint() {
+            return sx == ex && sy == ey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return sx == key.sx && sy == key.sy && ex == key.ex && ey == key.ey;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = sx;
+            h = 31 * h + sy;
+            h = 31 * h + ex;
+            h = 31 * h + ey;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * What is known about a snapped segment. Results of {@link #isOccluded(Segment)} queries
+     * don't tell the nearest intersection.
+     */
+    private static class Result {
+        final boolean nearestKnown;
+        final Point2D nearest;
+        final boolean occluded;
+
+        Result(boolean nearestKnown, Point2D nearest, boolean occluded) {
+            this.nearestKnown = nearestKnown;
+            this.nearest = nearest;
+            this.occluded = occluded;
+        }
+    }
+}
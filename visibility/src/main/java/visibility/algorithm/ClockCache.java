@@ -0,0 +1,124 @@
+package visibility.algorithm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A bounded map evicting entries by the CLOCK algorithm, an approximation of least recently used.
+ * Lookups are lock-free and only set an entry's reference bit; insertions are serialized.
+ */
+class ClockCache<K, V> {
+    private final ConcurrentHashMap<K, Entry<K, V>> map;
+    // The clock's face. Slots are filled in order, then reused by eviction.
+    private final Entry<K, V>[] slots;
+    private int hand = 0;
+    private int size = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ClockCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+        }
+        this.map = new ConcurrentHashMap<>(capacity * 2);
+        @SuppressWarnings("unchecked")
+        Entry<K, V>[] slots = (Entry<K, V>[]) new Entry<?, ?>[capacity];
+        this.slots = slots;
+    }
+
+    /**
+     * @return The value for key, or null if there is none. Counts a hit or a miss.
+     */
+    V get(K key) {
+        return get(key, value -> true);
+    }
+
+    /**
+     * @return The value for key if there is one and it is usable, null otherwise.
+     * Counts a hit, or a miss if the caller has to look elsewhere.
+     */
+    V get(K key, Predicate<? super V> usable) {
+        Entry<K, V> entry = map.get(key);
+        V value = entry == null ? null : entry.value;
+        if (value == null || !usable.test(value)) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return value;
+    }
+
+    /**
+     * Associates value with key, evicting another entry if the cache is full.
+     */
+    synchronized void put(K key, V value) {
+        Entry<K, V> entry = map.get(key);
+        if (entry != null) {
+            entry.value = value;
+            return;
+        }
+
+        int slot;
+        if (size < slots.length) {
+            slot = size++;
+        } else {
+            // Give every referenced entry a second chance, then evict the first one that has none
+            while (slots[hand].referenced) {
+                slots[hand].referenced = false;
+                hand = (hand + 1) % slots.length;
+            }
+            slot = hand;
+            hand = (hand + 1) % slots.length;
+            map.remove(slots[slot].key);
+            evictions.increment();
+        }
+
+        entry = new Entry<>(key, value);
+        slots[slot] = entry;
+        map.put(key, entry);
+    }
+
+    synchronized void clear() {
+        map.clear();
+        for (int i = 0; i < size; i++) {
+            slots[i] = null;
+        }
+        size = 0;
+        hand = 0;
+    }
+
+    int size() {
+        return map.size();
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static class Entry<K, V> {
+        final K key;
+        volatile V value;
+        volatile boolean referenced = false;
+
+        Entry(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
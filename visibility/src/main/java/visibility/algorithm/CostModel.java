@@ -0,0 +1,152 @@
+package visibility.algorithm;
+
+import visibility.types.Segment;
+import visibility.types.Triangle;
+
+import java.util.List;
+
+/**
+ * The costs the surface area heuristic weighs splitting planes by, see
+ * {@link BuildOptions#withCostModel(CostModel)}. Only their ratio matters to the heuristic.
+ */
+public class CostModel {
+    public static final CostModel DEFAULT = new CostModel(4, 1, 30, 1);
+
+    // The workload is timed this often per candidate, and the fastest run counts
+    private static final int TUNING_RUNS = 5;
+
+    /**
+     * The cost of visiting an inner node
+     */
+    public final double traversalCost;
+
+    /**
+     * The cost of testing a triangle
+     */
+    public final double intersectionCost;
+
+    /**
+     * Nodes deeper than this become leaves
+     */
+    public final int maxDepth;
+
+    /**
+     * The factor, at most 1, the cost of a plane with no triangles on one side is scaled by.
+     * Smaller values cut off empty space more eagerly, leaving empty leaves queries pass quickly.
+     * 1 doesn't prefer such planes.
+     */
+    public final double emptySpaceBonus;
+
+    private CostModel(double traversalCost, double intersectionCost, int maxDepth, double emptySpaceBonus) {
+        if (!(traversalCost > 0) || !(intersectionCost > 0)) {
+            throw new IllegalArgumentException("Costs must be positive");
+        }
+        if (!(emptySpaceBonus > 0 && emptySpaceBonus <= 1)) {
+            throw new IllegalArgumentException("The empty space bonus must be in (0, 1]");
+        }
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+        this.maxDepth = maxDepth;
+        this.emptySpaceBonus = emptySpaceBonus;
+    }
+
+    public CostModel withTraversalCost(double traversalCost) {
+        return new CostModel(traversalCost, intersectionCost, maxDepth, emptySpaceBonus);
+    }
+
+    public CostModel withIntersectionCost(double intersectionCost) {
+        return new CostModel(traversalCost, intersectionCost, maxDepth, emptySpaceBonus);
+    }
+
+    public CostModel withMaxDepth(int maxDepth) {
+        return new CostModel(traversalCost, intersectionCost, maxDepth, emptySpaceBonus);
+    }
+
+    public CostModel withEmptySpaceBonus(double emptySpaceBonus) {
+        return new CostModel(traversalCost, intersectionCost, maxDepth, emptySpaceBonus);
+    }
+
+    /**
+     * Measures what a traversal step costs compared to a triangle test on this machine, by timing
+     * the workload on trees of different shapes. Then picks the model around that ratio, with and
+     * without empty space bonus, whose tree answers the workload fastest.
+     * @param options The options to build the trees with, apart from their cost model
+     * @param workload Representative queries, a few thousand suffice
+     */
+    public static CostModel autoTune(List<Triangle> triangles, List<Segment> workload, BuildOptions options) {
+        final double ratio = measureTraversalCost(triangles, workload, options);
+
+        CostModel best = null;
+        long bestTime = Long.MAX_VALUE;
+        for (double traversalCost : new double[]{ratio / 2, ratio, ratio * 2}) {
+            for (double emptySpaceBonus : new double[]{1, 0.8}) {
+                CostModel candidate = DEFAULT
+                        .withTraversalCost(traversalCost)
+                        .withIntersectionCost(1)
+                        .withEmptySpaceBonus(emptySpaceBonus);
+                long time = time(KDTree.fromTriangles(triangles, options.withCostModel(candidate)), workload);
+                if (time < bestTime) {
+                    best = candidate;
+                    bestTime = time;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fits the time of the workload on trees built with different traversal costs as a linear
+     * combination of the inner nodes visited and triangles tested, by least squares. Leaves don't
+     * count as visits, since the cost model prices them by their triangle tests alone.
+     * @return The cost of an inner node visit relative to a triangle test, or the default's if the fit fails.
+     */
+    private static double measureTraversalCost(List<Triangle> triangles, List<Segment> workload, BuildOptions options) {
+        double nn = 0, nt = 0, tt = 0, nT = 0, tT = 0;
+        for (double traversalCost : new double[]{1, 4, 16}) {
+            KDTree tree = KDTree.fromTriangles(triangles, options.withCostModel(DEFAULT.withTraversalCost(traversalCost)));
+            final double time = time(tree, workload);
+            TraversalStatistics statistics = new TraversalStatistics();
+            tree.setStatistics(statistics);
+            for (Segment s : workload) {
+                tree.intersectWith(s);
+            }
+            final double nodes = statistics.nodes.getSum() - statistics.leaves.getSum();
+            final double tests = statistics.triangleTests.getSum();
+            nn += nodes * nodes;
+            nt += nodes * tests;
+            tt += tests * tests;
+            nT += nodes * time;
+            tT += tests * time;
+        }
+
+        // Solve the normal equations for time = node * nodes + test * tests
+        final double det = nn * tt - nt * nt;
+        final double node = (nT * tt - tT * nt) / det;
+        final double test = (tT * nn - nT * nt) / det;
+        if (!(node > 0) || !(test > 0)) {
+            return DEFAULT.traversalCost / DEFAULT.intersectionCost;
+        }
+        return node / test;
+    }
+
+    /**
+     * @return The fastest of TUNING_RUNS runs of the workload on the tree, in nanoseconds.
+     */
+    private static long time(KDTree tree, List<Segment> workload) {
+        long min = Long.MAX_VALUE;
+        for (int run = 0; run < TUNING_RUNS; run++) {
+            final long begin = System.nanoTime();
+            for (Segment s : workload) {
+                tree.intersectWith(s);
+            }
+            min = Math.min(min, System.nanoTime() - begin);
+        }
+        return min;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("traversal cost: %.3f, intersection cost: %.3f, max depth: %d, empty space bonus: %.2f",
+                traversalCost, intersectionCost, maxDepth, emptySpaceBonus);
+    }
+}
@@ -0,0 +1,341 @@
+package visibility.algorithm;
+
+import javafx.geometry.Point2D;
+import visibility.types.Triangle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Builds trees too large to build in memory into a file, which {@link OffHeapKDTree#load(Path)}
+ * maps. The triangles are streamed from a file written by {@link #writeTriangles(Iterable, Path)}
+ * and split at the median of their centroids until every part fits into the memory limit. Each
+ * part is built into a subtree by {@link KDTree#fromTriangles(List, BuildOptions)} and appended
+ * to the file below the splits, which make up the top of the tree. Triangles crossing a split
+ * go into both parts. Apart from the part being built, only buffers are kept in memory.
+ */
+public class ExternalBuild {
+    public static final ExternalBuild DEFAULT = new ExternalBuild(256L << 20, BuildOptions.DEFAULT);
+
+    // What building a subtree takes per triangle, the triangles and the subtree included,
+    // see getPartCapacity. Measured with the default options, and rounded up.
+    private static final long BYTES_PER_TRIANGLE = 512;
+
+    // Triangles are stored as their index followed by the coordinates ax, ay, bx, by, cx, cy
+    private static final int TRIANGLE_BYTES = 4 + 6 * 8;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    // The centroids are counted in this many bins along the split dimension to find their median
+    private static final int MEDIAN_BINS = 1024;
+    // Parts this deep are built whatever their size, in case the median never separates them
+    private static final int MAX_SPLIT_DEPTH = 48;
+
+    /**
+     * The number of bytes building a subtree may take
+     */
+    public final long memoryLimit;
+
+    /**
+     * The options the subtrees are built with. They are built completely and without ropes,
+     * since those aren't written to the file.
+     */
+    public final BuildOptions options;
+
+    private ExternalBuild(long memoryLimit, BuildOptions options) {
+        if (memoryLimit <= 0) {
+            throw new IllegalArgumentException("The memory limit must be positive");
+        }
+        this.memoryLimit = memoryLimit;
+        this.options = options;
+    }
+
+    public ExternalBuild withMemoryLimit(long memoryLimit) {
+        return new ExternalBuild(memoryLimit, options);
+    }
+
+    public ExternalBuild withOptions(BuildOptions options) {
+        return new ExternalBuild(memoryLimit, options);
+    }
+
+    /**
+     * @return The largest number of triangles a subtree is built from at once. Only triangles
+     * which overlap too much to be separated by splitting make for larger parts.
+     */
+    public int getPartCapacity() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryLimit / BYTES_PER_TRIANGLE));
+    }
+
+    /**
+     * Writes the triangles to file for {@link #build(Path, Path)}, one after the other, so that
+     * they may be produced as they are written.
+     */
+    public static void writeTriangles(Iterable<Triangle> triangles, Path file) throws IOException {
+        try (DataOutputStream out = output(file)) {
+            int index = 0;
+            for (Triangle t : triangles) {
+                out.writeInt(index++);
+                out.writeDouble(t.a.getX());
+                out.writeDouble(t.a.getY());
+                out.writeDouble(t.b.getX());
+                out.writeDouble(t.b.getY());
+                out.writeDouble(t.c.getX());
+                out.writeDouble(t.c.getY());
+            }
+        }
+    }
+
+    /**
+     * Builds the tree of the triangles in a file written by {@link #writeTriangles(Iterable, Path)}
+     * into another file. The parts are kept in a temporary directory next to that file.
+     * @return The number of subtrees the tree was built from.
+     * @throws IOException Also if the tree has more than {@link OffHeapKDTree#MAX_NODES} nodes or
+     * {@link OffHeapKDTree#MAX_REFERENCES} triangle references, which checking the input rules out
+     * up front for too many triangles.
+     */
+    public int build(Path triangles, Path tree) throws IOException {
+        final Path scratch = Files.createTempDirectory(tree.toAbsolutePath().getParent(), "build");
+        try (OffHeapKDTree.Writer out = new OffHeapKDTree.Writer(tree, scratch)) {
+            Part all = scan(triangles);
+            final int subtrees = build(all, 0, new Build(out, scratch));
+            out.finish(all.triangles);
+            return subtrees;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tree);
+            throw e;
+        } finally {
+            // Parts left behind by a failed build
+            try (Stream<Path> files = Files.list(scratch)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.delete(scratch);
+        }
+    }
+
+    /**
+     * Splits the part, appending a node for the split and the children's subtrees, or builds
+     * its subtree if it fits into the memory limit.
+     * @return The number of subtrees appended.
+     */
+    private int build(Part part, int depth, Build build) throws IOException {
+        if (part.count <= getPartCapacity() || depth >= MAX_SPLIT_DEPTH) {
+            buildSubtree(part, build.out);
+            return 1;
+        }
+
+        final boolean splitAtX = part.maxX - part.minX >= part.maxY - part.minY;
+        final double splitValue = median(part, splitAtX);
+        Part left = new Part(build.nextFile(), true);
+        Part right = new Part(build.nextFile(), true);
+        try (DataInputStream in = input(part.file);
+             DataOutputStream leftOut = output(left.file);
+             DataOutputStream rightOut = output(right.file)) {
+            final int dimension = splitAtX ? 0 : 1;
+            final double[] vertices = new double[6];
+            for (long i = 0; i < part.count; i++) {
+                final int index = read(in, vertices);
+                // Triangles touching the plane go into both parts, like those crossing it
+                if (min(vertices, dimension) <= splitValue) {
+                    write(leftOut, index, vertices);
+                    left.add(index, vertices);
+                }
+                if (max(vertices, dimension) >= splitValue) {
+                    write(rightOut, index, vertices);
+                    right.add(index, vertices);
+                }
+            }
+        }
+
+        if (left.count == part.count || right.count == part.count) {
+            // The triangles reach across the plane too much for either part to shrink
+            Files.delete(left.file);
+            Files.delete(right.file);
+            buildSubtree(part, build.out);
+            return 1;
+        }
+        part.delete();
+
+        final int node = build.out.nodes();
+        build.out.inner(splitAtX, splitValue, -1);
+        int subtrees = build(left, depth + 1, build);
+        build.out.setRight(node, build.out.nodes());
+        subtrees += build(right, depth + 1, build);
+        return subtrees;
+    }
+
+    /**
+     * @return The first bin boundary with at least half of the part's centroids below it.
+     */
+    private static double median(Part part, boolean splitAtX) throws IOException {
+        final double min = splitAtX ? part.minX : part.minY;
+        final double width = ((splitAtX ? part.maxX : part.maxY) - min) / MEDIAN_BINS;
+        long[] bins = new long[MEDIAN_BINS];
+        try (DataInputStream in = input(part.file)) {
+            final double[] vertices = new double[6];
+            for (long i = 0; i < part.count; i++) {
+                read(in, vertices);
+                final double centroid = centroid(vertices, splitAtX ? 0 : 1);
+                bins[Math.max(0, Math.min(MEDIAN_BINS - 1, (int) ((centroid - min) / width)))]++;
+            }
+        }
+
+        // The lowest and the highest centroid are in the first and last bin, so neither side is empty
+        long below = bins[0];
+        int boundary = 1;
+        while (boundary < MEDIAN_BINS - 1 && 2 * below < part.count) {
+            below += bins[boundary++];
+        }
+        return min + boundary * width;
+    }
+
+    private void buildSubtree(Part part, OffHeapKDTree.Writer out) throws IOException {
+        Triangle[] triangles = new Triangle[(int) part.count];
+        int[] ids = new int[triangles.length];
+        try (DataInputStream in = input(part.file)) {
+            final double[] v = new double[6];
+            for (int i = 0; i < triangles.length; i++) {
+                ids[i] = read(in, v);
+                triangles[i] = new Triangle(new Point2D(v[0], v[1]), new Point2D(v[2], v[3]), new Point2D(v[4], v[5]));
+            }
+        }
+        part.delete();
+
+        KDTree.fromTriangles(Arrays.asList(triangles), options
+                .withLazyDepth(0)
+                .withRopes(false)
+                .withBuildReport(false))
+                .writeTo(out, ids);
+    }
+
+    /**
+     * Reads the file written by {@link #writeTriangles(Iterable, Path)} once to describe its triangles.
+     */
+    private static Part scan(Path file) throws IOException {
+        final long size = Files.size(file);
+        if (size % TRIANGLE_BYTES != 0) {
+            throw new IOException("Not a triangle file: " + file);
+        }
+        // Every triangle is referenced at least once, so trees of more can't be loaded
+        if (size / TRIANGLE_BYTES > OffHeapKDTree.MAX_REFERENCES) {
+            throw new IOException(file + " holds " + size / TRIANGLE_BYTES + " triangles, but trees can't reference more than "
+                    + OffHeapKDTree.MAX_REFERENCES);
+        }
+        Part part = new Part(file, false);
+        try (DataInputStream in = input(file)) {
+            final double[] vertices = new double[6];
+            for (long i = 0; i < size / TRIANGLE_BYTES; i++) {
+                part.add(read(in, vertices), vertices);
+            }
+        }
+        return part;
+    }
+
+    /**
+     * @param vertices The triangle's ax, ay, bx, by, cx, cy
+     * @param dimension 0 for x, 1 for y
+     * @return The center of the triangle's bounds along dimension.
+     */
+    private static double centroid(double[] vertices, int dimension) {
+        return (min(vertices, dimension) + max(vertices, dimension)) / 2;
+    }
+
+    private static double min(double[] vertices, int dimension) {
+        return Math.min(vertices[dimension], Math.min(vertices[2 + dimension], vertices[4 + dimension]));
+    }
+
+    private static double max(double[] vertices, int dimension) {
+        return Math.max(vertices[dimension], Math.max(vertices[2 + dimension], vertices[4 + dimension]));
+    }
+
+    /**
+     * @param vertices Receives the triangle's ax, ay, bx, by, cx, cy
+     * @return The triangle's index
+     */
+    private static int read(DataInputStream in, double[] vertices) throws IOException {
+        final int index = in.readInt();
+        for (int i = 0; i < vertices.length; i++) {
+            vertices[i] = in.readDouble();
+        }
+        return index;
+    }
+
+    private static void write(DataOutputStream out, int index, double[] vertices) throws IOException {
+        out.writeInt(index);
+        for (double v : vertices) {
+            out.writeDouble(v);
+        }
+    }
+
+    private static DataInputStream input(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_BYTES));
+    }
+
+    private static DataOutputStream output(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_BYTES));
+    }
+
+    /**
+     * The triangles in a file, and the bounds of their centroids.
+     */
+    private static class Part {
+        public final Path file;
+        // Whether the file is one of the build's, to be deleted once split or built
+        public final boolean temporary;
+        public long count;
+        // One more than the highest index of the triangles
+        public int triangles;
+        public double minX = Double.POSITIVE_INFINITY;
+        public double minY = Double.POSITIVE_INFINITY;
+        public double maxX = Double.NEGATIVE_INFINITY;
+        public double maxY = Double.NEGATIVE_INFINITY;
+
+        Part(Path file, boolean temporary) {
+            this.file = file;
+            this.temporary = temporary;
+        }
+
+        void add(int index, double[] vertices) {
+            count++;
+            triangles = Math.max(triangles, index + 1);
+            final double x = centroid(vertices, 0);
+            final double y = centroid(vertices, 1);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        void delete() throws IOException {
+            if (temporary) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * The state shared by the parts of a build.
+     */
+    private static class Build {
+        public final OffHeapKDTree.Writer out;
+        public final Path scratch;
+        private int files;
+
+        Build(OffHeapKDTree.Writer out, Path scratch) {
+            this.out = out;
+            this.scratch = scratch;
+        }
+
+        Path nextFile() {
+            return scratch.resolve("part" + files++);
+        }
+    }
+}
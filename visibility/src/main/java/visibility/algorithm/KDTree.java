@@ -2,257 +2,2342 @@ package visibility.algorithm;
 
 import javafx.geometry.Point2D;
 import org.jetbrains.annotations.Nullable;
-import org.jooq.lambda.Seq;
 import org.jooq.lambda.tuple.Tuple2;
 import visibility.types.*;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
-import java.util.stream.Stream;
+import java.util.function.Supplier;
 
 import static java.util.Comparator.comparing;
 import static org.jooq.lambda.tuple.Tuple.tuple;
 
 public class KDTree implements SpatialDataStructure {
 
-    private static final double TRAVERSAL_COST = 4;
-    private static final double INTERSECTION_COST = 1;
 
-//    private static long interTime = 0;
-//    private static int inters = 0;
-//    private static long recursionTime = 0;
-//    private static int recursion = 0;
+    // Slack for comparing intersection distances against the splitting planes' distances
+    private static final double T_EPSILON = 1e-9;
+
+    private static final ThreadLocal<TraversalStack> STACKS = ThreadLocal.withInitial(TraversalStack::new);
+    private static final ThreadLocal<Packet> PACKETS = ThreadLocal.withInitial(Packet::new);
+    // For queries descending into deferred subtrees while their query of this tree is underway
+    private static final ThreadLocal<TraversalStack> DEFERRED_STACKS = ThreadLocal.withInitial(TraversalStack::new);
+
+    static final byte AXIS_X = 0;
+    private static final byte AXIS_Y = 1;
+    private static final byte LEAF = 2;
+
+    static final int FACE_MIN_X = 0;
+    static final int FACE_MIN_Y = 1;
+    static final int FACE_MAX_X = 2;
+    static final int FACE_MAX_Y = 3;
+
+
+    // The tree is stored linearized in depth-first order in the following parallel arrays.
+    // The left child of an inner node i is always i + 1, its right child is children[i].
+    // For a leaf, children[i] is the offset of its range in leafTriangles and leafSizes[i]
+    // the length of that range. Entries of leafTriangles are indices into triangles.
+    // Additionally, the vertices of the triangles in the leaf ranges are stored as
+    // structure of arrays, parallel to leafTriangles, to be tested pack-wise.
+    // In compact mode, compactSplits and compactAx to compactCy replace splitValues and
+    // leafAx to leafCy, which are null then, see CompactGeometry.
+    private final double[] splitValues;
+    private final byte[] axes;
+    private final int[] children;
+    private final int[] leafSizes;
+    private final int[] leafTriangles;
+    private final double[] leafAx, leafAy, leafBx, leafBy, leafCx, leafCy;
+    private final float[] compactSplits;
+    private final float[] compactAx, compactAy, compactBx, compactBy, compactCx, compactCy;
+    @Nullable
+    private final CompactGeometry compact;
+    // Null in compact mode, unless subtrees are deferred and need them to be built
+    @Nullable
+    private final Triangle[] triangles;
+    private final int triangleCount;
+    private final BoundingRectangle bounds;
+
+    // Optional neighbour links for stackless traversal. For every leaf i, ropes[4 * i + f]
+    // is the smallest node containing the whole neighbourhood of the leaf's face f
+    // (one of the FACE_* constants), or -1 if that face is on the tree's boundary.
+    // cellBounds[4 * i + f] is the coordinate of that face.
+    private final int[] ropes;
+    private final double[] cellBounds;
+
+    private final double expectedCost;
+    private final BuildReport buildReport;
+
+    // With a lazy depth, the subtrees the leaves at that depth stand for, indexed by node,
+    // or null for ordinary leaves. Null without a lazy depth.
+    private final Deferred[] deferred;
+    private final BuildOptions options;
+
+    private final LongAdder triangleTests = new LongAdder();
+    private final LongAdder skippedTriangleTests = new LongAdder();
+    private final LongAdder budgetedQueries = new LongAdder();
+    private final LongAdder exhaustedBudgets = new LongAdder();
+    private volatile TraversalStatistics statistics;
+    private volatile QuerySample querySample;
+
+    /**
+     * @param compact The compact geometry in compact mode, shared with the tree above for deferred subtrees
+     */
+    private KDTree(@Nullable KDNode root, Triangle[] triangles, BoundingRectangle bounds, BuildOptions options,
+                   @Nullable CompactGeometry compact, long prepareTime, long buildTime) {
+        final long flattenBegin = System.nanoTime();
+        int nodes = root == null ? 0 : countNodes(root);
+        final int refs = root == null ? 0 : countLeafRefs(root);
+        this.axes = new byte[nodes];
+        this.children = new int[nodes];
+        this.leafSizes = new int[nodes];
+        this.leafTriangles = new int[refs];
+        this.compact = compact;
+        if (compact == null) {
+            this.splitValues = new double[nodes];
+            this.leafAx = new double[refs];
+            this.leafAy = new double[refs];
+            this.leafBx = new double[refs];
+            this.leafBy = new double[refs];
+            this.leafCx = new double[refs];
+            this.leafCy = new double[refs];
+            this.compactSplits = null;
+            this.compactAx = this.compactAy = this.compactBx = this.compactBy = this.compactCx = this.compactCy = null;
+        } else {
+            this.splitValues = null;
+            this.leafAx = this.leafAy = this.leafBx = this.leafBy = this.leafCx = this.leafCy = null;
+            this.compactSplits = new float[nodes];
+            this.compactAx = new float[refs];
+            this.compactAy = new float[refs];
+            this.compactBx = new float[refs];
+            this.compactBy = new float[refs];
+            this.compactCx = new float[refs];
+            this.compactCy = new float[refs];
+        }
+        this.triangleCount = triangles.length;
+        this.triangles = compact == null || options.lazyDepth > 0 ? triangles : null;
+        this.bounds = bounds;
+        this.deferred = options.lazyDepth > 0 ? new Deferred[nodes] : null;
+        this.options = options;
+        this.expectedCost = root == null ? 0 : expectedCost(root, options.costModel) / root.surfaceArea;
+        if (root != null) {
+            flatten(root, triangles, 0, 0);
+        }
+        final long ropesBegin = System.nanoTime();
+        if (options.ropes && root != null) {
+            this.ropes = new int[4 * nodes];
+            this.cellBounds = new double[4 * nodes];
+            buildRopes(0, new int[]{-1, -1, -1, -1},
+                    new double[]{bounds.min.getX(), bounds.min.getY(), bounds.max.getX(), bounds.max.getY()});
+        } else {
+            this.ropes = null;
+            this.cellBounds = null;
+        }
+        final long end = System.nanoTime();
+        this.buildReport = options.buildReport
+                ? new BuildReport(axes, LEAF, children, leafSizes, triangleCount, getDeferredSubtrees(), expectedCost,
+                        prepareTime, buildTime, ropesBegin - flattenBegin, end - ropesBegin)
+                : null;
+    }
+
+    /**
+     * Assigns ropes and bounds to the leaves of the subtree rooted at node.
+     * @param ropes The ropes of the node's cell, indexed by FACE_*
+     * @param cell The bounds of the node's cell, indexed by FACE_*
+     */
+    private void buildRopes(int node, int[] ropes, double[] cell) {
+        if (axes[node] == LEAF) {
+            for (int f = 0; f < 4; f++) {
+                this.ropes[4 * node + f] = optimizeRope(ropes[f], f, cell);
+                this.cellBounds[4 * node + f] = cell[f];
+            }
+        } else {
+            final int min = axes[node] == AXIS_X ? FACE_MIN_X : FACE_MIN_Y;
+            final int max = axes[node] == AXIS_X ? FACE_MAX_X : FACE_MAX_Y;
+
+            int[] leftRopes = ropes.clone();
+            double[] leftCell = cell.clone();
+            leftRopes[max] = children[node];
+            leftCell[max] = splitValue(node);
+            buildRopes(node + 1, leftRopes, leftCell);
+
+            int[] rightRopes = ropes.clone();
+            double[] rightCell = cell.clone();
+            rightRopes[min] = node + 1;
+            rightCell[min] = splitValue(node);
+            buildRopes(children[node], rightRopes, rightCell);
+        }
+    }
+
+    /**
+     * Pushes the rope of a cell's face down to the smallest node still containing
+     * all of the face's neighbourhood, so that following it needs fewer steps.
+     */
+    private int optimizeRope(int rope, int face, double[] cell) {
+        final boolean faceAtX = face == FACE_MIN_X || face == FACE_MAX_X;
+        while (rope != -1 && axes[rope] != LEAF) {
+            final double splitValue = splitValue(rope);
+            if ((axes[rope] == AXIS_X) == faceAtX) {
+                // The splitting plane is parallel to the face: Take the child adjacent to it
+                rope = face == FACE_MAX_X || face == FACE_MAX_Y ? rope + 1 : children[rope];
+            } else if (splitValue <= cell[faceAtX ? FACE_MIN_Y : FACE_MIN_X]) {
+                rope = children[rope];
+            } else if (splitValue >= cell[faceAtX ? FACE_MAX_Y : FACE_MAX_X]) {
+                rope = rope + 1;
+            } else {
+                break;
+            }
+        }
+        return rope;
+    }
 
-    private final KDNode root;
+    private static int countNodes(KDNode node) {
+        return node.isLeaf() ? 1 : 1 + countNodes(node.left) + countNodes(node.right);
+    }
 
-    private KDTree(@Nullable KDNode root) {
-        this.root = root;
+    private static int countLeafRefs(KDNode node) {
+        return node.isLeaf() ? node.triangles.length : countLeafRefs(node.left) + countLeafRefs(node.right);
+    }
+
+    /**
+     * Writes the subtree rooted at node to index i of the node arrays and its triangle
+     * references to leafTriangles, starting at offset.
+     * @return The tuple of the next free node index and the next free leafTriangles offset.
+     */
+    private Tuple2<Integer, Integer> flatten(KDNode node, Triangle[] triangles, int i, int offset) {
+        if (node.isLeaf()) {
+            axes[i] = LEAF;
+            children[i] = offset;
+            if (node.deferred != null) {
+                deferred[i] = node.deferred;
+            }
+            leafSizes[i] = node.triangles.length;
+            for (int index : node.triangles) {
+                leafTriangles[offset] = index;
+                if (compact != null) {
+                    final double[] v = compact.vertices;
+                    compactAx[offset] = (float) (v[6 * index] - compact.originX);
+                    compactAy[offset] = (float) (v[6 * index + 1] - compact.originY);
+                    compactBx[offset] = (float) (v[6 * index + 2] - compact.originX);
+                    compactBy[offset] = (float) (v[6 * index + 3] - compact.originY);
+                    compactCx[offset] = (float) (v[6 * index + 4] - compact.originX);
+                    compactCy[offset] = (float) (v[6 * index + 5] - compact.originY);
+                    offset++;
+                    continue;
+                }
+                final Triangle triangle = triangles[index];
+                leafAx[offset] = triangle.a.getX();
+                leafAy[offset] = triangle.a.getY();
+                leafBx[offset] = triangle.b.getX();
+                leafBy[offset] = triangle.b.getY();
+                leafCx[offset] = triangle.c.getX();
+                leafCy[offset] = triangle.c.getY();
+                offset++;
+            }
+            return tuple(i + 1, offset);
+        } else {
+            axes[i] = node.splittingPlane.dimension == Dimension.X ? AXIS_X : AXIS_Y;
+            if (compact != null) {
+                compactSplits[i] = compact.toFloat(node.splittingPlane);
+                assert splitValue(i) == node.splittingPlane.splitValue;
+            } else {
+                splitValues[i] = node.splittingPlane.splitValue;
+            }
+            Tuple2<Integer, Integer> next = flatten(node.left, triangles, i + 1, offset);
+            children[i] = next.v1;
+            return flatten(node.right, triangles, next.v1, next.v2);
+        }
+    }
+
+    private double splitValue(int node) {
+        return compact != null
+                ? (axes[node] == AXIS_X ? compact.originX : compact.originY) + compactSplits[node]
+                : splitValues[node];
     }
 
     @Override
     public Point2D intersectWith(Segment s) {
-        if (root == null) {
+        if (axes.length == 0) {
             return null;
         }
 
-        //recursion = 0; recursionTime = 0;
-        //inters = 0; interTime = 0;
-        //long begin = System.nanoTime();
-        Point2D intersect = intersect(root, s);
-        //recursionTime = System.nanoTime() - begin;
-        //recursionTime -= interTime;
-        //interTime /= inters;
-        //recursionTime /= recursion;
-        //System.out.println(recursionTime/(double)interTime);
-        return intersect;
+        record(s);
+        TraversalStack stack = STACKS.get();
+        stack.reset(s.length(), triangleCount, statistics != null);
+        double t = ropes != null
+                ? nearestHitWithRopes(s, Double.POSITIVE_INFINITY, stack)
+                : nearestHit(s, Double.POSITIVE_INFINITY, stack);
+        finishQuery(stack);
+        return t == Double.POSITIVE_INFINITY ? null : s.pointAtDistance(t);
     }
 
-    private static Point2D intersect(KDNode node, Segment seg) {
-        if (node.isLeaf()) {
-            //long begin = System.nanoTime();
-            Intersection min = null;
-            for (TriangleRef r : node.refs) {
-                //inters++;
-                Intersection i = seg.intersectTriangle(r.triangle);
-                if (i != null) {
-                    if (min == null || min.getDistance() > i.getDistance()) {
-                        min = i;
+    /**
+     * Like {@link #intersectWith(Segment)}, but gives up once the query exceeds budget.
+     * @return {@link QueryBudget.Status#UNKNOWN} if the budget ran out before any intersection was found,
+     * and {@link QueryBudget.Status#BLOCKED} but not {@link QueryBudget.Result#nearest} if it ran out
+     * before nearer intersections than the one found were ruled out.
+     */
+    public QueryBudget.Result intersectWith(Segment s, QueryBudget budget) {
+        if (axes.length == 0) {
+            return QueryBudget.Result.VISIBLE;
+        }
+
+        record(s);
+        TraversalStack stack = STACKS.get();
+        stack.reset(s.length(), triangleCount, statistics != null);
+        double t = nearestHit(s, budget, stack);
+        finishQuery(stack);
+        budgetedQueries.increment();
+        if (stack.exhausted) {
+            exhaustedBudgets.increment();
+            return t == Double.POSITIVE_INFINITY
+                    ? QueryBudget.Result.UNKNOWN
+                    : new QueryBudget.Result(QueryBudget.Status.BLOCKED, s.pointAtDistance(t), false);
+        }
+        return t == Double.POSITIVE_INFINITY
+                ? QueryBudget.Result.VISIBLE
+                : new QueryBudget.Result(QueryBudget.Status.BLOCKED, s.pointAtDistance(t), true);
+    }
+
+    /**
+     * Like {@link #intersectWith(Segment)}, but first tries what context remembers about the
+     * previous query: The triangle that blocked it is tested first and bounds the traversal,
+     * and if the start is still in the same leaf, that leaf is tested before anything else.
+     * The context is updated for the next query.
+     */
+    public Point2D intersectWith(Segment s, QueryContext context) {
+        if (axes.length == 0) {
+            return null;
+        }
+
+        record(s);
+        context.bind(this);
+        TraversalStack stack = STACKS.get();
+        stack.reset(s.length(), triangleCount, statistics != null);
+        double t = nearestHit(s, context, stack);
+        finishQuery(stack);
+        return t == Double.POSITIVE_INFINITY ? null : s.pointAtDistance(t);
+    }
+
+    /**
+     * Like {@link #isOccluded(Segment)}, but first tests the triangle that blocked the previous
+     * query and the leaves containing the segment's start and end, see {@link #intersectWith(Segment, QueryContext)}.
+     */
+    public boolean isOccluded(Segment s, QueryContext context) {
+        if (axes.length == 0) {
+            return false;
+        }
+
+        record(s);
+        context.bind(this);
+        TraversalStack stack = STACKS.get();
+        stack.reset(s.length(), triangleCount, statistics != null);
+        boolean occluded = anyHit(s, context, stack);
+        finishQuery(stack);
+        return occluded;
+    }
+
+    private double nearestHit(Segment seg, QueryContext context, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+
+        double min = Double.POSITIVE_INFINITY;
+        if (context.occluder != -1) {
+            min = distanceToTriangle(seg, context.occluder, stack);
+        }
+
+        if (!QueryContext.contains(context.startCell, sx, sy)) {
+            context.startLeaf = locateWithCell(sx, sy, dx, dy, context.startCell);
+        }
+
+        if (context.startLeaf != -1) {
+            // The start leaf is the first one on the segment, so if we find an intersection
+            // within it, that's the nearest one and we don't need to traverse at all.
+            min = nearestInLeaf(seg, context.startLeaf, min, stack);
+            double exit = Math.min(
+                    exitDistance(context.startCell[FACE_MIN_X], context.startCell[FACE_MAX_X], sx, dx),
+                    exitDistance(context.startCell[FACE_MIN_Y], context.startCell[FACE_MAX_Y], sy, dy));
+            if (min <= exit + T_EPSILON) {
+                context.occluder = stack.nearest;
+                return min;
+            }
+        }
+
+        // Anything beyond the nearest intersection found so far is irrelevant
+        stack.tmax = Math.min(stack.tmax, min);
+        double t;
+        if (ropes != null && context.startLeaf != -1) {
+            t = nearestAlongRopes(seg, context.startLeaf, min, stack);
+        } else if (ropes != null) {
+            t = nearestHitWithRopes(seg, min, stack);
+        } else {
+            t = nearestHit(seg, min, stack);
+        }
+        context.occluder = t == Double.POSITIVE_INFINITY ? -1 : stack.nearest;
+        return t;
+    }
+
+    private boolean anyHit(Segment seg, QueryContext context, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double ex = seg.getEnd().getX();
+        final double ey = seg.getEnd().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+
+        if (context.occluder != -1 && distanceToTriangle(seg, context.occluder, stack) != Double.POSITIVE_INFINITY) {
+            return true;
+        }
+
+        if (!QueryContext.contains(context.startCell, sx, sy)) {
+            context.startLeaf = locateWithCell(sx, sy, dx, dy, context.startCell);
+        }
+        if (!QueryContext.contains(context.endCell, ex, ey)) {
+            context.endLeaf = locateWithCell(ex, ey, -dx, -dy, context.endCell);
+        }
+
+        boolean occluded = (context.startLeaf != -1 && anyInLeaf(seg, context.startLeaf, stack))
+                || (context.endLeaf != -1 && anyInLeaf(seg, context.endLeaf, stack))
+                || (ropes != null ? anyHitWithRopes(seg, stack) : anyHit(seg, stack));
+        context.occluder = occluded ? stack.nearest : -1;
+        return occluded;
+    }
+
+    /**
+     * Tests a single triangle, marking it as tested for the current query.
+     */
+    private double distanceToTriangle(Segment seg, int triangle, TraversalStack stack) {
+        stack.mailbox[triangle] = stack.ray;
+        stack.tests++;
+        double t;
+        if (compact != null) {
+            t = compact.distanceToTriangle(seg, triangle);
+        } else {
+            Triangle tri = triangles[triangle];
+            t = seg.distanceToTriangle(tri.a.getX(), tri.a.getY(), tri.b.getX(), tri.b.getY(), tri.c.getX(), tri.c.getY());
+        }
+        if (t != Double.POSITIVE_INFINITY) {
+            stack.nearest = triangle;
+            stack.hitLeaf = -1;
+        }
+        return t;
+    }
+
+    /**
+     * Compact mode variant of {@link Segment#distanceToTriangles}, for the leaf triangle references [from, to).
+     */
+    private double distanceToTriangles(Segment seg, int from, int to) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int pack = from; pack < to; pack += Segment.PACK_SIZE) {
+            int mask = linePassesTriangles(seg, pack, Math.min(to, pack + Segment.PACK_SIZE));
+            while (mask != 0) {
+                final int r = pack + Integer.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+                min = Math.min(min, compact.distanceToTriangle(seg, leafTriangles[r]));
+            }
+        }
+        return min;
+    }
+
+    /**
+     * @see Segment#linePassesTriangles
+     */
+    private int linePassesTriangles(Segment seg, int from, int to) {
+        return compact != null
+                ? seg.linePassesTriangles(compactAx, compactAy, compactBx, compactBy, compactCx, compactCy,
+                        compact.originX, compact.originY, compact.slack, from, to)
+                : seg.linePassesTriangles(leafAx, leafAy, leafBx, leafBy, leafCx, leafCy, from, to);
+    }
+
+    @Override
+    public Point2D[] intersectAll(Segment[] segments) {
+        double[] distances = new double[segments.length];
+        intersectAll(segments, distances);
+        Point2D[] hits = new Point2D[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            hits[i] = distances[i] == Double.POSITIVE_INFINITY ? null : segments[i].pointAtDistance(distances[i]);
+        }
+        return hits;
+    }
+
+    /**
+     * Traverses the tree with packets of up to {@link Packet#SIZE} segments at once.
+     * Segments are only packed together if their directions lie in the same quadrant,
+     * so that each node's children are visited in the same order for every segment in the packet.
+     */
+    @Override
+    public void intersectAll(Segment[] segments, double[] distances) {
+        if (axes.length == 0) {
+            Arrays.fill(distances, 0, segments.length, Double.POSITIVE_INFINITY);
+            return;
+        }
+
+        final QuerySample sample = this.querySample;
+        if (sample != null) {
+            for (Segment s : segments) {
+                sample.record(s);
+            }
+        }
+
+        Packet packet = PACKETS.get();
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            packet.clear();
+            for (int i = 0; i < segments.length; i++) {
+                if (Packet.quadrant(segments[i]) == quadrant) {
+                    packet.add(segments[i], i);
+                    if (packet.size == Packet.SIZE) {
+                        nearestHits(packet, distances);
+                        packet.clear();
                     }
                 }
             }
-            //interTime += System.nanoTime()-begin;
-            return min == null ? null : min.getIntersection();
-        } else {
-            //recursion++;
-            boolean splitAtX = node.splittingPlane.dimension == Dimension.X;
-            double splitValue = node.splittingPlane.splitValue;
-            return seg.splitAtXorY(splitAtX, splitValue).map((startOnLeftSide, start, end) -> {
-                if (startOnLeftSide) {
-                    Point2D p = intersect(node.left, start);
-                    return p != null || end == null ? p : intersect(node.right, end);
+            if (packet.size > 0) {
+                nearestHits(packet, distances);
+            }
+        }
+        packet.clear();
+    }
+
+    /**
+     * Packet variant of {@link #nearestHit(Segment, TraversalStack)}. Every node is fetched only
+     * once for all segments of the packet which overlap it. The result for the i-th
+     * segment in the packet is written to distances[packet.indices[i]].
+     */
+    private void nearestHits(Packet packet, double[] distances) {
+        final int n = packet.size;
+        final boolean positiveX = (packet.quadrant & 1) == 0;
+        final boolean positiveY = (packet.quadrant & 2) == 0;
+
+        int node = 0;
+        int active = (1 << n) - 1; // Bit i is set if the i-th segment overlaps node
+        int done = 0; // Bit i is set when we found the i-th segment's nearest intersection
+        for (int i = 0; i < n; i++) {
+            packet.tmin[i] = 0;
+            packet.tmax[i] = packet.segments[i].length();
+            distances[packet.indices[i]] = Double.POSITIVE_INFINITY;
+        }
+        packet.stackSize = 0;
+
+        while (true) {
+            final byte axis = axes[node];
+            if (axis != LEAF) {
+                final double[] s = axis == AXIS_X ? packet.sx : packet.sy;
+                final double[] d = axis == AXIS_X ? packet.dx : packet.dy;
+                final double splitValue = splitValue(node);
+                final boolean leftFirst = axis == AXIS_X ? positiveX : positiveY;
+                final int first = leftFirst ? node + 1 : children[node];
+                final int second = leftFirst ? children[node] : node + 1;
+
+                // Reserve a stack entry for the second child and fill in the intervals as we go
+                final int entry = packet.reserveStackEntry();
+                int firstMask = 0;
+                int secondMask = 0;
+                for (int i = 0; i < n; i++) {
+                    if ((active & (1 << i)) == 0) continue;
+
+                    if (d[i] == 0) {
+                        // Parallel to the plane, see nearestHit
+                        if (s[i] < splitValue == leftFirst) {
+                            firstMask |= 1 << i;
+                        } else {
+                            secondMask |= 1 << i;
+                            packet.pushInterval(entry, i, packet.tmin[i], packet.tmax[i]);
+                        }
+                        continue;
+                    }
+
+                    final double t = (splitValue - s[i]) / d[i];
+                    if (t > packet.tmax[i]) {
+                        firstMask |= 1 << i;
+                    } else if (t < packet.tmin[i]) {
+                        secondMask |= 1 << i;
+                        packet.pushInterval(entry, i, packet.tmin[i], packet.tmax[i]);
+                    } else {
+                        firstMask |= 1 << i;
+                        secondMask |= 1 << i;
+                        packet.pushInterval(entry, i, t, packet.tmax[i]);
+                        packet.tmax[i] = t;
+                    }
+                }
+
+                if (secondMask != 0) {
+                    packet.commitStackEntry(second, secondMask);
+                }
+                if (firstMask != 0) {
+                    node = first;
+                    active = firstMask;
+                    continue;
+                }
+            } else {
+                final int begin = children[node];
+                final int end = begin + leafSizes[node];
+                final int[] rays = packet.rays;
+                final double[] min = packet.min;
+                int m = 0;
+                for (int i = 0; i < n; i++) {
+                    if ((active & (1 << i)) != 0) {
+                        rays[m++] = i;
+                    }
+                }
+                // Packets have no budget, so they build deferred subtrees on the spot like single queries
+                final boolean isDeferred = deferred != null && deferred[node] != null;
+                for (int j = 0; j < m; j++) {
+                    if (isDeferred) {
+                        min[j] = nearestInDeferred(packet.segments[rays[j]], node, Double.POSITIVE_INFINITY, null);
+                        continue;
+                    }
+                    min[j] = compact != null
+                            ? distanceToTriangles(packet.segments[rays[j]], begin, end)
+                            : packet.segments[rays[j]].distanceToTriangles(leafAx, leafAy, leafBx, leafBy, leafCx, leafCy, begin, end);
+                }
+                for (int j = 0; j < m; j++) {
+                    final int i = rays[j];
+                    if (min[j] <= packet.tmax[i] + T_EPSILON) {
+                        distances[packet.indices[i]] = min[j];
+                        done |= 1 << i;
+                    }
+                }
+            }
+
+            // Continue with the next stack entry which still has unfinished segments
+            active = 0;
+            while (active == 0 && packet.stackSize > 0) {
+                int entry = --packet.stackSize;
+                node = packet.stackNodes[entry];
+                active = packet.stackMasks[entry] & ~done;
+                for (int i = 0; i < n; i++) {
+                    if ((active & (1 << i)) != 0) {
+                        packet.tmin[i] = packet.stackTmins[entry * Packet.SIZE + i];
+                        packet.tmax[i] = packet.stackTmaxs[entry * Packet.SIZE + i];
+                    }
+                }
+            }
+            if (active == 0) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean isOccluded(Segment s) {
+        if (axes.length == 0) {
+            return false;
+        }
+
+        record(s);
+        TraversalStack stack = STACKS.get();
+        stack.reset(s.length(), triangleCount, statistics != null);
+        boolean occluded = ropes != null ? anyHitWithRopes(s, stack) : anyHit(s, stack);
+        finishQuery(stack);
+        return occluded;
+    }
+
+    /**
+     * Traverses the tree front to back, keeping track of the [tmin, tmax] interval of the
+     * segment that lies within the current node. Far children still to visit are deferred
+     * to the explicit stack, so that a query does not allocate.
+     * @param min The distance of an intersection already known, or {@link Double#POSITIVE_INFINITY}
+     * @return The distance of the intersection closest to the segment's start,
+     * or {@link Double#POSITIVE_INFINITY} if there is none.
+     */
+    private double nearestHit(Segment seg, double min, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+
+        // min is the nearest intersection over all triangles tested so far. Triangles tested
+        // in earlier leaves are skipped (see TraversalStack.mailbox), so we have to
+        // remember intersections beyond their leaves.
+        int node = 0;
+
+        while (true) {
+            if (axes[node] != LEAF) {
+                node = descend(node, sx, sy, dx, dy, stack);
+            } else {
+                min = nearestInLeaf(seg, node, min, stack);
+
+                // Triangles may stick out of the leaf, so an intersection beyond tmax might be
+                // preceded by another one in one of the leaves we have yet to visit.
+                if (min <= stack.tmax + T_EPSILON) {
+                    return min;
+                }
+                if (stack.isEmpty()) {
+                    return min;
+                }
+                node = stack.pop();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #nearestHit(Segment, double, TraversalStack)}, but sets stack.exhausted and
+     * returns the nearest intersection found so far once the query exceeds budget.
+     */
+    private double nearestHit(Segment seg, QueryBudget budget, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+        final long deadline = budget.hasTimeLimit() ? System.nanoTime() + budget.timeLimit : 0;
+
+        double min = Double.POSITIVE_INFINITY;
+        int node = 0;
+
+        while (true) {
+            if (axes[node] != LEAF) {
+                node = descend(node, sx, sy, dx, dy, stack);
+            } else {
+                if (deferred != null && deferred[node] != null) {
+                    if (!deferred[node].isBuilt() && !budget.isUnlimited()) {
+                        // Building the subtree may take longer than any budget allows, so it is
+                        // built in the background for later queries, and this one gives up
+                        deferred[node].buildInBackground(this);
+                        stack.exhausted = true;
+                        return min;
+                    }
+                    min = nearestInDeferred(seg, node, min, remaining(budget, deadline, stack), stack);
+                    if (stack.exhausted) {
+                        return min;
+                    }
                 } else {
-                    Point2D p = intersect(node.right, start);
-                    return p != null || end == null ? p : intersect(node.left, end);
+                    min = nearestInLeaf(seg, node, min, stack);
+                }
+
+                if (min <= stack.tmax + T_EPSILON) {
+                    return min;
+                }
+                if (stack.isEmpty()) {
+                    return min;
                 }
-            });
+                if (stack.innerNodes + stack.leaves >= budget.maxNodes || stack.tests >= budget.maxTriangleTests
+                        || (deadline != 0 && System.nanoTime() - deadline >= 0)) {
+                    stack.exhausted = true;
+                    return min;
+                }
+                node = stack.pop();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #nearestHit(Segment, double, TraversalStack)}, but stops at the first triangle
+     * intersecting the segment, wherever that is.
+     */
+    private boolean anyHit(Segment seg, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+
+        int node = 0;
+
+        while (true) {
+            if (axes[node] != LEAF) {
+                node = descend(node, sx, sy, dx, dy, stack);
+            } else {
+                if (anyInLeaf(seg, node, stack)) {
+                    return true;
+                }
+                if (stack.isEmpty()) {
+                    return false;
+                }
+                node = stack.pop();
+            }
+        }
+    }
+
+    /**
+     * Tests the triangles of a leaf which the current query did not test yet.
+     * Updates stack.nearest if one of them is nearer than min.
+     * @param min The distance of the nearest intersection found so far
+     * @return The distance of the nearest intersection, including the leaf's triangles
+     */
+    private double nearestInLeaf(Segment seg, int leaf, double min, TraversalStack stack) {
+        if (deferred != null && deferred[leaf] != null) {
+            return nearestInDeferred(seg, leaf, min, stack);
+        }
+        stack.leaves++;
+        final int[] mailbox = stack.mailbox;
+        final int ray = stack.ray;
+        final int end = children[leaf] + leafSizes[leaf];
+        int tests = 0;
+        int skipped = 0;
+        for (int pack = children[leaf]; pack < end; pack += Segment.PACK_SIZE) {
+            int mask = linePassesTriangles(seg, pack, Math.min(end, pack + Segment.PACK_SIZE));
+            while (mask != 0) {
+                final int r = pack + Integer.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+                final int i = leafTriangles[r];
+                if (mailbox[i] == ray) {
+                    skipped++;
+                    continue;
+                }
+                mailbox[i] = ray;
+                tests++;
+                double t = compact != null
+                        ? compact.distanceToTriangle(seg, i)
+                        : seg.distanceToTriangle(leafAx[r], leafAy[r], leafBx[r], leafBy[r], leafCx[r], leafCy[r]);
+                if (t < min) {
+                    min = t;
+                    stack.nearest = i;
+                    stack.hitLeaf = leaf;
+                }
+            }
+        }
+        stack.tests += tests;
+        stack.skipped += skipped;
+        return min;
+    }
+
+    /**
+     * Tests the triangles of a leaf which the current query did not test yet, until
+     * the first one intersecting the segment, which becomes stack.nearest.
+     */
+    private boolean anyInLeaf(Segment seg, int leaf, TraversalStack stack) {
+        if (deferred != null && deferred[leaf] != null) {
+            return anyInDeferred(seg, leaf, stack);
+        }
+        stack.leaves++;
+        final int[] mailbox = stack.mailbox;
+        final int ray = stack.ray;
+        final int end = children[leaf] + leafSizes[leaf];
+        for (int pack = children[leaf]; pack < end; pack += Segment.PACK_SIZE) {
+            int mask = linePassesTriangles(seg, pack, Math.min(end, pack + Segment.PACK_SIZE));
+            while (mask != 0) {
+                final int r = pack + Integer.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+                final int i = leafTriangles[r];
+                if (mailbox[i] == ray) {
+                    stack.skipped++;
+                    continue;
+                }
+                mailbox[i] = ray;
+                stack.tests++;
+                if (compact != null
+                        ? compact.intersectsTriangle(seg, i)
+                        : seg.intersectsTriangle(leafAx[r], leafAy[r], leafBx[r], leafBy[r], leafCx[r], leafCy[r])) {
+                    stack.nearest = i;
+                    stack.hitLeaf = leaf;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Like {@link #nearestInLeaf}, but queries the subtree deferred to the leaf, building it if
+     * it wasn't yet.
+     * @param stack The stack of the query of this tree, or null if there is none to update
+     */
+    private double nearestInDeferred(Segment seg, int leaf, double min, @Nullable TraversalStack stack) {
+        final KDTree subtree = deferred[leaf].get(this);
+        final TraversalStack inner = DEFERRED_STACKS.get();
+        inner.reset(seg.length(), triangleCount, false);
+        inner.tmax = Math.min(inner.tmax, min);
+        final double t = subtree.ropes != null
+                ? subtree.nearestHitWithRopes(seg, min, inner)
+                : subtree.nearestHit(seg, min, inner);
+        if (stack != null) {
+            addDeferred(stack, inner);
+            if (t < min) {
+                stack.nearest = inner.nearest;
+                stack.hitLeaf = leaf;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Like {@link #nearestInDeferred(Segment, int, double, TraversalStack)}, but within budget,
+     * for a subtree which is built already. Sets stack.exhausted if the budget runs out.
+     */
+    private double nearestInDeferred(Segment seg, int leaf, double min, QueryBudget budget, TraversalStack stack) {
+        final KDTree subtree = deferred[leaf].get(this);
+        final TraversalStack inner = DEFERRED_STACKS.get();
+        inner.reset(seg.length(), triangleCount, false);
+        inner.tmax = Math.min(inner.tmax, min);
+        final double t = subtree.nearestHit(seg, budget, inner);
+        addDeferred(stack, inner);
+        stack.exhausted = inner.exhausted;
+        if (t < min) {
+            stack.nearest = inner.nearest;
+            stack.hitLeaf = leaf;
+            return t;
+        }
+        return min;
+    }
+
+    /**
+     * @param deadline The query's deadline, or 0 if budget has no time limit
+     * @return What is left of budget after what the query did so far.
+     */
+    private static QueryBudget remaining(QueryBudget budget, long deadline, TraversalStack stack) {
+        QueryBudget remaining = budget
+                .withMaxNodes(budget.maxNodes - stack.innerNodes - stack.leaves)
+                .withMaxTriangleTests(budget.maxTriangleTests - stack.tests);
+        return deadline == 0 ? remaining : remaining.withTimeLimit(deadline - System.nanoTime());
+    }
+
+    /**
+     * Like {@link #anyInLeaf}, but queries the subtree deferred to the leaf, building it if it wasn't yet.
+     */
+    private boolean anyInDeferred(Segment seg, int leaf, TraversalStack stack) {
+        final KDTree subtree = deferred[leaf].get(this);
+        final TraversalStack inner = DEFERRED_STACKS.get();
+        inner.reset(seg.length(), triangleCount, false);
+        final boolean occluded = subtree.ropes != null
+                ? subtree.anyHitWithRopes(seg, inner)
+                : subtree.anyHit(seg, inner);
+        addDeferred(stack, inner);
+        if (occluded) {
+            stack.nearest = inner.nearest;
+            stack.hitLeaf = leaf;
+        }
+        return occluded;
+    }
+
+    /**
+     * Counts what a query of a deferred subtree did towards the query of this tree.
+     */
+    private static void addDeferred(TraversalStack stack, TraversalStack inner) {
+        stack.innerNodes += inner.innerNodes;
+        stack.leaves += inner.leaves;
+        stack.tests += inner.tests;
+        stack.skipped += inner.skipped;
+    }
+
+    /**
+     * Stackless variant of {@link #nearestHit(Segment, double, TraversalStack)}, which follows
+     * the ropes of each leaf to its neighbour instead of revisiting inner nodes.
+     */
+    private double nearestHitWithRopes(Segment seg, double min, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+        return nearestAlongRopes(seg, entryLeaf(sx, sy, dx, dy, stack), min, stack);
+    }
+
+    /**
+     * Follows the ropes from leaf, which must contain the point at distance stack.tmin
+     * on the segment, up to stack.tmax.
+     */
+    private double nearestAlongRopes(Segment seg, int leaf, double min, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+        final double length = stack.tmax;
+
+        while (leaf != -1) {
+            min = nearestInLeaf(seg, leaf, min, stack);
+            int next = exitLeaf(leaf, sx, sy, dx, dy, stack);
+            if (min <= stack.tmax + T_EPSILON) {
+                return min;
+            }
+            leaf = stack.tmax < length ? next : -1;
+        }
+        return min;
+    }
+
+    /**
+     * Stackless variant of {@link #anyHit(Segment, TraversalStack)}, see {@link #nearestHitWithRopes}.
+     */
+    private boolean anyHitWithRopes(Segment seg, TraversalStack stack) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+        final double length = stack.tmax;
+
+        int leaf = entryLeaf(sx, sy, dx, dy, stack);
+
+        while (leaf != -1) {
+            if (anyInLeaf(seg, leaf, stack)) {
+                return true;
+            }
+            int next = exitLeaf(leaf, sx, sy, dx, dy, stack);
+            leaf = stack.tmax < length ? next : -1;
+        }
+        return false;
+    }
+
+    /**
+     * Clips the segment to the tree's bounds and locates the leaf where it enters the tree.
+     * @return The leaf, or -1 if the segment misses the tree's bounds.
+     */
+    private int entryLeaf(double sx, double sy, double dx, double dy, TraversalStack stack) {
+        double tmin = 0;
+        double tmax = stack.tmax;
+        if (dx == 0) {
+            if (sx < bounds.min.getX() || sx > bounds.max.getX()) return -1;
+        } else {
+            double t1 = (bounds.min.getX() - sx) / dx;
+            double t2 = (bounds.max.getX() - sx) / dx;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        }
+        if (dy == 0) {
+            if (sy < bounds.min.getY() || sy > bounds.max.getY()) return -1;
+        } else {
+            double t1 = (bounds.min.getY() - sy) / dy;
+            double t2 = (bounds.max.getY() - sy) / dy;
+            tmin = Math.max(tmin, Math.min(t1, t2));
+            tmax = Math.min(tmax, Math.max(t1, t2));
+        }
+        if (tmin > tmax) {
+            return -1;
+        }
+        stack.tmin = tmin;
+        return tmin == 0 ? locate(0, sx, sy, dx, dy, stack) : locate(0, sx + dx * tmin, sy + dy * tmin, dx, dy, stack);
+    }
+
+    /**
+     * Computes where the segment leaves the leaf, which becomes stack.tmax.
+     * @return The leaf the segment enters next, or -1 if it leaves the tree.
+     */
+    private int exitLeaf(int leaf, double sx, double sy, double dx, double dy, TraversalStack stack) {
+        final double minX = cellBounds[4 * leaf + FACE_MIN_X];
+        final double minY = cellBounds[4 * leaf + FACE_MIN_Y];
+        final double maxX = cellBounds[4 * leaf + FACE_MAX_X];
+        final double maxY = cellBounds[4 * leaf + FACE_MAX_Y];
+        final double tx = exitDistance(minX, maxX, sx, dx);
+        final double ty = exitDistance(minY, maxY, sy, dy);
+
+        stack.tmin = stack.tmax;
+        int rope;
+        double px, py;
+        if (tx < ty) {
+            stack.tmax = tx;
+            rope = ropes[4 * leaf + (dx > 0 ? FACE_MAX_X : FACE_MIN_X)];
+            px = dx > 0 ? maxX : minX;
+            py = sy + dy * tx;
+        } else {
+            stack.tmax = ty;
+            rope = ropes[4 * leaf + (dy > 0 ? FACE_MAX_Y : FACE_MIN_Y)];
+            px = sx + dx * ty;
+            py = dy > 0 ? maxY : minY;
         }
+        return rope == -1 ? -1 : locate(rope, px, py, dx, dy, stack);
+    }
+
+    /**
+     * @return The distance at which a ray starting at s in direction d leaves the interval [min, max]
+     */
+    private static double exitDistance(double min, double max, double s, double d) {
+        return d > 0 ? (max - s) / d : d < 0 ? (min - s) / d : Double.POSITIVE_INFINITY;
     }
 
+    /**
+     * Like {@link #locate}, but starts at the root and also computes the leaf's cell.
+     * @param cell Receives the bounds of the leaf's cell, indexed by FACE_*
+     * @return The leaf, or -1 if the point is outside of the tree's bounds.
+     */
+    private int locateWithCell(double px, double py, double dx, double dy, double[] cell) {
+        if (px < bounds.min.getX() || px > bounds.max.getX() || py < bounds.min.getY() || py > bounds.max.getY()) {
+            Arrays.fill(cell, Double.NaN);
+            return -1;
+        }
+        cell[FACE_MIN_X] = bounds.min.getX();
+        cell[FACE_MIN_Y] = bounds.min.getY();
+        cell[FACE_MAX_X] = bounds.max.getX();
+        cell[FACE_MAX_Y] = bounds.max.getY();
+        int node = 0;
+        while (axes[node] != LEAF) {
+            final boolean splitAtX = axes[node] == AXIS_X;
+            final double p = splitAtX ? px : py;
+            final double d = splitAtX ? dx : dy;
+            final double splitValue = splitValue(node);
+            if (p < splitValue || (p == splitValue && d < 0)) {
+                cell[splitAtX ? FACE_MAX_X : FACE_MAX_Y] = splitValue;
+                node = node + 1;
+            } else {
+                cell[splitAtX ? FACE_MIN_X : FACE_MIN_Y] = splitValue;
+                node = children[node];
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Descends from node to the leaf containing the point (px, py). Points on a
+     * splitting plane belong to the side the direction (dx, dy) points to.
+     */
+    private int locate(int node, double px, double py, double dx, double dy, TraversalStack stack) {
+        while (axes[node] != LEAF) {
+            stack.innerNodes++;
+            final boolean splitAtX = axes[node] == AXIS_X;
+            final double p = splitAtX ? px : py;
+            final double d = splitAtX ? dx : dy;
+            final double splitValue = splitValue(node);
+            node = p < splitValue || (p == splitValue && d < 0) ? node + 1 : children[node];
+        }
+        return node;
+    }
+
+    private void record(Segment s) {
+        final QuerySample sample = this.querySample;
+        if (sample != null) {
+            sample.record(s);
+        }
+    }
+
+    private void finishQuery(TraversalStack stack) {
+        triangleTests.add(stack.tests);
+        if (stack.skipped != 0) {
+            skippedTriangleTests.add(stack.skipped);
+        }
+
+        final TraversalStatistics statistics = this.statistics;
+        if (statistics != null) {
+            statistics.record(
+                    stack.innerNodes + stack.leaves, stack.leaves, stack.tests, stack.skipped,
+                    stack.nearest == -1 || stack.hitLeaf == -1 ? -1 : depth(stack.hitLeaf),
+                    stack.begin == 0 ? -1 : System.nanoTime() - stack.begin);
+        }
+    }
+
+    /**
+     * @return The number of inner nodes above node
+     */
+    private int depth(int node) {
+        int depth = 0;
+        int i = 0;
+        while (i != node) {
+            i = node < children[i] ? i + 1 : children[i];
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Makes single segment queries record what they do into statistics, or stops recording if
+     * statistics is null. Recording costs a few nanoseconds per query.
+     */
+    public void setStatistics(@Nullable TraversalStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    public @Nullable TraversalStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Makes queries record their segments into sample, or stops recording if sample is null.
+     * Rebuild the tree for the sample with {@link #rebuildFor(List)}.
+     */
+    public void setQuerySample(@Nullable QuerySample sample) {
+        this.querySample = sample;
+    }
+
+    public @Nullable QuerySample getQuerySample() {
+        return querySample;
+    }
+
+    /**
+     * @return The number of triangle intersection tests done by single segment queries so far.
+     */
+    public long getTriangleTests() {
+        return triangleTests.sum();
+    }
+
+    /**
+     * @return The number of triangle intersection tests single segment queries skipped so far,
+     * because they already tested the same triangle in a different leaf.
+     */
+    public long getSkippedTriangleTests() {
+        return skippedTriangleTests.sum();
+    }
+
+    /**
+     * @return The number of queries with a {@link QueryBudget} so far.
+     */
+    public long getBudgetedQueries() {
+        return budgetedQueries.sum();
+    }
+
+    /**
+     * @return The number of queries with a {@link QueryBudget} which ran out of it so far.
+     */
+    public long getExhaustedBudgets() {
+        return exhaustedBudgets.sum();
+    }
+
+    /**
+     * @return A future completing once the deferred subtrees which queries with a {@link QueryBudget}
+     * gave up on so far are built in the background.
+     */
+    public CompletableFuture<Void> getBackgroundBuilds() {
+        if (deferred == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<CompletableFuture<?>> builds = new ArrayList<>();
+        for (Deferred subtree : deferred) {
+            if (subtree != null && subtree.background != null) {
+                builds.add(subtree.background);
+            }
+        }
+        return CompletableFuture.allOf(builds.toArray(new CompletableFuture<?>[builds.size()]));
+    }
+
+    /**
+     * Descends from an inner node into the child containing the start of the current
+     * interval, narrowing the interval to that child. If the segment crosses the splitting
+     * plane within the interval, the other child is deferred to the stack.
+     * @return The child to visit next
+     */
+    private int descend(int node, double sx, double sy, double dx, double dy, TraversalStack stack) {
+        stack.innerNodes++;
+        final boolean splitAtX = axes[node] == AXIS_X;
+        final double s = splitAtX ? sx : sy;
+        final double d = splitAtX ? dx : dy;
+        final double splitValue = splitValue(node);
+
+        if (d == 0) {
+            // Parallel to the plane. Like Segment.splitAtXorY, points on the plane belong to the right side.
+            return s < splitValue ? node + 1 : children[node];
+        }
+
+        // The child we are in at tmin unless we crossed the plane before tmin
+        final int first = d > 0 ? node + 1 : children[node];
+        final int second = d > 0 ? children[node] : node + 1;
+        final double t = (splitValue - s) / d;
+
+        if (t > stack.tmax) {
+            return first;
+        } else if (t < stack.tmin) {
+            return second;
+        } else {
+            stack.push(second, t, stack.tmax);
+            stack.tmax = t;
+            return first;
+        }
+    }
+
+    /**
+     * @return The expected cost of a query by the surface area heuristic the tree was built with,
+     * in units of a triangle test.
+     */
+    public double getExpectedCost() {
+        return expectedCost;
+    }
+
+    /**
+     * Runs the workload and weighs what each query did by the tree's cost model, the measured
+     * counterpart of {@link #getExpectedCost()}. Neither statistics nor samples record these queries.
+     * @return The mean cost of the workload's queries, in units of a triangle test.
+     */
+    public double measureCost(List<Segment> workload) {
+        if (axes.length == 0 || workload.isEmpty()) {
+            return 0;
+        }
+
+        final CostModel costs = options.costModel;
+        TraversalStack stack = STACKS.get();
+        double cost = 0;
+        for (Segment s : workload) {
+            stack.reset(s.length(), triangleCount, false);
+            if (ropes != null) {
+                nearestHitWithRopes(s, Double.POSITIVE_INFINITY, stack);
+            } else {
+                nearestHit(s, Double.POSITIVE_INFINITY, stack);
+            }
+            cost += costs.traversalCost * stack.innerNodes + costs.intersectionCost * stack.tests;
+        }
+        return cost / workload.size();
+    }
+
+    /**
+     * Builds the tree anew for the workload, say the segments of a {@link QuerySample}: Splits
+     * are chosen by how likely the workload's queries visit either side, see
+     * {@link BuildOptions#withWorkload(List)}. Only the {@link BuildOptions.Strategy#SAH} strategy
+     * weighs splits by the workload, others build the same tree again.
+     * Compare the trees' {@link #measureCost(List)} on the workload to see what it gained.
+     */
+    public KDTree rebuildFor(List<Segment> workload) {
+        return fromTriangles(Arrays.asList(triangles()), options.withWorkload(workload));
+    }
+
+    /**
+     * @return The tree's triangles, recreated from the compact geometry if the tree doesn't keep them.
+     */
+    private Triangle[] triangles() {
+        return triangles != null ? triangles : compact.triangles();
+    }
+
+    /**
+     * @return The report on how the tree was built, or null unless built with
+     * {@link BuildOptions#withBuildReport(boolean)}.
+     */
+    @Nullable
+    public BuildReport getBuildReport() {
+        return buildReport;
+    }
+
+    /**
+     * @return The number of subtrees below the lazy depth which no query reached yet, see
+     * {@link BuildOptions#lazyDepth}.
+     */
+    public int getDeferredSubtrees() {
+        int count = 0;
+        if (deferred != null) {
+            for (Deferred subtree : deferred) {
+                if (subtree != null && !subtree.isBuilt()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies the tree to memory outside of the heap. The copy doesn't support the tree's options.
+     * A tree with a lazy depth is built completely for the copy.
+     * @throws IllegalArgumentException If the tree is too large to be copied, see
+     * {@link OffHeapKDTree#MAX_NODES} and {@link OffHeapKDTree#MAX_REFERENCES}.
+     */
+    public OffHeapKDTree toOffHeap() {
+        if (deferred != null) {
+            return fromTriangles(Arrays.asList(triangles), options.withLazyDepth(0).withBuildReport(false)).toOffHeap();
+        }
+        double[] splitValues = new double[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            splitValues[i] = axes[i] == LEAF ? 0 : splitValue(i);
+        }
+        return new OffHeapKDTree(splitValues, axes, LEAF, children, leafSizes, leafTriangles, triangles());
+    }
+
+    /**
+     * Appends the tree's nodes to out, see {@link ExternalBuild}.
+     * @param ids The index of each of the tree's triangles in the file written
+     */
+    void writeTo(OffHeapKDTree.Writer out, int[] ids) throws IOException {
+        if (deferred != null) {
+            throw new IllegalStateException("A tree with a lazy depth isn't completely built");
+        }
+        if (axes.length == 0) {
+            out.leaf(0);
+            return;
+        }
+
+        final Triangle[] triangles = triangles();
+        final int base = out.nodes();
+        for (int i = 0; i < axes.length; i++) {
+            if (axes[i] == LEAF) {
+                out.leaf(leafSizes[i]);
+                for (int r = children[i]; r < children[i] + leafSizes[i]; r++) {
+                    out.reference(ids[leafTriangles[r]], triangles[leafTriangles[r]]);
+                }
+            } else {
+                out.inner(axes[i] == AXIS_X, splitValue(i), base + children[i]);
+            }
+        }
+    }
 
     public static KDTree fromTriangles(List<Triangle> triangles) {
-        TriangleRef[] refs = Seq.seq(triangles)
-                .map(TriangleRef::new)
-                .toArray(TriangleRef[]::new);
+        return fromTriangles(triangles, BuildOptions.DEFAULT);
+    }
+
+    public static KDTree fromTriangles(List<Triangle> triangles, BuildOptions options) {
+        final long begin = System.nanoTime();
+        Triangle[] ts = triangles.toArray(new Triangle[triangles.size()]);
+        double[] triangleBounds = new double[4 * ts.length];
+        double[] bounds = emptyBounds();
+        for (int i = 0; i < ts.length; i++) {
+            setBounds(triangleBounds, 4 * i, BoundingRectangle.fromPoints(ts[i]));
+            mergeBounds(bounds, triangleBounds, 4 * i);
+        }
+
+        // The KDNode graph is only an intermediate, the tree flattens it into its arrays.
+        final long buildBegin = System.nanoTime();
+        final BoundingRectangle rootBounds = toRectangle(bounds);
+        final CompactGeometry compact = options.compactGeometry ? new CompactGeometry(ts, rootBounds) : null;
+        final KDNode root = ts.length == 0 ? null : buildTree(ts, triangleBounds, rootBounds, options, compact);
+        return new KDTree(root, ts, rootBounds, options, compact, buildBegin - begin, System.nanoTime() - buildBegin);
+    }
+
+    /**
+     * @param triangleBounds The bounds of the triangles, laid out like {@link PresortedBuild#triangleBounds}
+     * @param compact The compact geometry to round the splitting planes for, or null
+     */
+    private static KDNode buildTree(Triangle[] triangles, double[] triangleBounds, BoundingRectangle bounds, BuildOptions options,
+                                    @Nullable CompactGeometry compact) {
+        if (options.strategy == BuildOptions.Strategy.SAH) {
+            int[] all = all(triangles.length);
+            Events[] events = new Events[Dimension.values().length];
+            for (Dimension d : Dimension.values()) {
+                events[d.ordinal()] = sortedEvents(all, triangleBounds, bounds, d);
+            }
+            PresortedBuild build = new PresortedBuild(triangles, triangleBounds, options, compact);
+            final int[] queries = crossing(build.queries, all(build.queries.length), bounds);
+            final KDNode root = options.parallelBuild
+                    ? ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() ->
+                            buildTreePresorted(all, queries, events, bounds, 0, Double.MAX_VALUE, build)))
+                    : buildTreePresorted(all, queries, events, bounds, 0, Double.MAX_VALUE, build);
+            // Deferred subtrees keep the build, but not its scratch
+            build.dropScratch();
+            return root;
+        }
+
+        TriangleRef[] refs = new TriangleRef[triangles.length];
+        for (int i = 0; i < triangles.length; i++) {
+            refs[i] = new TriangleRef(triangles[i], i);
+        }
+        switch (options.strategy) {
+            case SAH_RESORTING:
+                return buildTreeSAH(refs, bounds, 0, Double.MAX_VALUE, options.costModel, options.perfectSplits, options.lazyDepth,
+                        compact);
+            case BINNED_SAH:
+                return buildTreeTopDown(refs, bounds, KDTree::binnedSplit, options, compact);
+            case SPATIAL_MEDIAN:
+                return buildTreeTopDown(refs, bounds, KDTree::spatialMedianSplit, options, compact);
+            case OBJECT_MEDIAN:
+                return buildTreeTopDown(refs, bounds, KDTree::objectMedianSplit, options, compact);
+        }
+        assert false;
+        return null;
+    }
+
+    private static KDNode buildTreeSAH(TriangleRef[] refs, BoundingRectangle bounds, int depth, double lastCost,
+                                       CostModel costs, boolean perfectSplits, int lazyDepth,
+                                       @Nullable CompactGeometry compact) {
+        double minCost = Double.MAX_VALUE;
+        SplittingPlane minPlane = null;
+        SplittingPlaneAffiliation minPlaneAffiliation = null;
+        int minnleft = Integer.MAX_VALUE;
+        int minnright = Integer.MAX_VALUE;
+
+        List<TriangleEvent> events = new ArrayList<>(refs.length * 2);
+
+        for (Dimension d : Dimension.values()) {
+            for (TriangleRef ref : refs) {
+                BoundingRectangle br = bounds.intersect(ref.bounds);
+                if (d.getValue(br.min) == d.getValue(br.max)) {
+                    // The triangle is planar after clipping it to the current Voxel
+                    events.add(new TriangleEvent(ref.triangle, new SplittingPlane(d.getValue(br.min), d), EventType.PLANAR));
+                } else {
+                    events.add(new TriangleEvent(ref.triangle, new SplittingPlane(d.getValue(br.min), d), EventType.START));
+                    events.add(new TriangleEvent(ref.triangle, new SplittingPlane(d.getValue(br.max), d), EventType.END));
+                }
+            }
 
-        final BoundingRectangle bounds = Seq.seq(Stream.of(refs))
-                .map(ref -> ref.bounds)
-                .foldLeft(BoundingRectangle.EMPTY, BoundingRectangle::merge);
+            events.sort((a, b) -> {
+                int i1 = (int) Math.signum(a.p.splitValue - b.p.splitValue);
+                int i2 = (int) Math.signum(a.type.ord - b.type.ord);
+                return i1 != 0 ? i1 : i2;
+            }); // As per the order in the paper: Sort by splitValue, then by EventType: END < PLANAR < START
 
-        return new KDTree(buildTreeSAH(refs, bounds, 0, Double.MAX_VALUE));
+            // Now we sweep over the event list and find the minimum cost splitting plane for this dimension.
+            int nleft = 0;
+            int nright = refs.length;
+
+            for (int i = 0; i < events.size(); ) {
+                TriangleEvent evt = events.get(i);
+                int pend = 0;
+                int pplanar = 0;
+                int pstart = 0;
+                final SplittingPlane p = evt.p;
+
+                // aggregate all p* for the same splitValue
+                while (evt.p.splitValue == p.splitValue) {
+                    switch (evt.type) {
+                        case END:
+                            pend++;
+                            break;
+                        case PLANAR:
+                            pplanar++;
+                            break;
+                        case START:
+                            pstart++;
+                            break;
+                    }
+
+                    if (++i < events.size()) {
+                        evt = events.get(i);
+                    } else {
+                        break;
+                    }
+                }
+
+                // Now we got all p* values for the current splitValue.
+                // Move plane *onto* p.
+                nright -= pplanar;
+                nright -= pend;
+
+                Tuple2<Double, SplittingPlaneAffiliation> result = surfaceAreaHeuristic(bounds, p, nleft, nright, pplanar, costs);
+                if (result.v1 < minCost) {
+                    minCost = result.v1;
+                    minPlane = p;
+                    minPlaneAffiliation = result.v2;
+                    minnleft = nleft;
+                    minnright = nright;
+                    switch (minPlaneAffiliation) {
+                        case LEFT:
+                            minnleft += pplanar;
+                            break;
+                        case RIGHT:
+                            minnright += pplanar;
+                            break;
+                    }
+                }
+
+                // Move plane *beyond* p
+                nleft += pstart;
+                nleft += pplanar;
+
+                assert nleft + nright >= refs.length;
+                assert minnleft + minnright >= refs.length;
+            }
+
+            events.clear();
+        }
+
+        if (compact != null && minPlane != null) {
+            minPlane = compact.round(minPlane, bounds);
+        }
+        if (costs.intersectionCost * refs.length < minCost || depth > costs.maxDepth || lastCost <= minCost
+                || minPlane == null) {
+            return KDNode.leaf(bounds, refs);
+        }
+
+        // We found the best splitting plane and the associated costs, all that is left to do is split.
+        // The sweep's counts may be off for triangles touching the voxel only on its boundary,
+        // they are planar after clipping but not before.
+        // With perfect splits, the triangles in both children are clipped to either half.
+        final Tuple2<BoundingRectangle, BoundingRectangle> halves = perfectSplits ? splitBoundingRect(bounds, minPlane) : null;
+        TriangleRef[] left = new TriangleRef[refs.length];
+        TriangleRef[] right = new TriangleRef[refs.length];
+        int l = 0;
+        int r = 0;
+        BoundingRectangle lv = BoundingRectangle.EMPTY;
+        BoundingRectangle rv = BoundingRectangle.EMPTY;
+        for (TriangleRef ref : refs) {
+            if (minPlane.dimension.getValue(ref.bounds.min) == minPlane.splitValue
+                    && minPlane.dimension.getValue(ref.bounds.max) == minPlane.splitValue) {
+                if (minPlaneAffiliation == SplittingPlaneAffiliation.RIGHT) {
+                    right[r++] = ref;
+                    rv = rv.merge(ref.bounds);
+                } else {
+                    left[l++] = ref;
+                    lv = lv.merge(ref.bounds);
+                }
+            } else {
+                final boolean inLeft = minPlane.dimension.getValue(ref.bounds.min) < minPlane.splitValue;
+                final boolean inRight = minPlane.dimension.getValue(ref.bounds.max) > minPlane.splitValue;
+                // Clipping may leave nothing of a triangle merely touching the plane
+                final TriangleRef leftPart = inLeft && inRight && halves != null ? clipTo(ref, halves.v1) : ref;
+                final TriangleRef rightPart = inLeft && inRight && halves != null ? clipTo(ref, halves.v2) : ref;
+                if (inLeft && !leftPart.bounds.isEmpty()) {
+                    left[l++] = leftPart;
+                    lv = lv.merge(leftPart.bounds);
+                }
+                if (inRight && !rightPart.bounds.isEmpty()) {
+                    right[r++] = rightPart;
+                    rv = rv.merge(rightPart.bounds);
+                }
+                // In the remaining case where min == max == splitValue, the triangle
+                // is planar (extent == 0) and will we dealt with in the other if branch
+                // according to minPlaneAffiliation.
+            }
+        }
+
+        // The children's voxels shrink to the bounds of their triangles, cut at the voxel and the plane.
+        // With perfect splits these are the bounds of the clipped parts, so the children are tight.
+        lv = childVoxel(lv, bounds, minPlane).v1;
+        rv = childVoxel(rv, bounds, minPlane).v2;
+        left = Arrays.copyOf(left, l);
+        right = Arrays.copyOf(right, r);
+
+        final TriangleRef[] leftRefs = left;
+        final TriangleRef[] rightRefs = right;
+        final BoundingRectangle leftBounds = lv;
+        final BoundingRectangle rightBounds = rv;
+        final double cost = minCost;
+        if (depth + 1 == lazyDepth) {
+            return KDNode.inner(bounds,
+                    KDNode.deferred(leftBounds, l, () ->
+                            buildTreeSAH(leftRefs, leftBounds, depth + 1, cost, costs, perfectSplits, lazyDepth, compact)),
+                    KDNode.deferred(rightBounds, r, () ->
+                            buildTreeSAH(rightRefs, rightBounds, depth + 1, cost, costs, perfectSplits, lazyDepth, compact)),
+                    minPlane);
+        }
+        KDNode leftChild = buildTreeSAH(left, lv, depth + 1, minCost, costs, perfectSplits, lazyDepth, compact);
+        KDNode rightChild = buildTreeSAH(right, rv, depth + 1, minCost, costs, perfectSplits, lazyDepth, compact);
+
+        return KDNode.inner(bounds, leftChild, rightChild, minPlane);
+    }
+
+    /**
+     * Builds the same tree as {@link #buildTreeSAH}, but in O(N log N): The events are only
+     * sorted once at the root and then split into the children's event lists, which keeps
+     * them sorted. Only the events of triangles ending up in both children change, because
+     * they are clipped to the children's voxels. These few are generated anew, sorted and
+     * merged into the lists.
+     * Triangles are referred to by index and events are packed into primitive arrays, so
+     * that the build allocates little more than the events themselves.
+     * @param triangles The indices of the triangles in the voxel
+     * @param queries The indices of the workload's queries crossing the voxel, see {@link BuildOptions#workload}
+     * @param events The sorted events of the triangles clipped to bounds, indexed by dimension.
+     *               The node drops them once it has split them into its children's.
+     */
+    private static KDNode buildTreePresorted(int[] triangles, int[] queries, Events[] events, BoundingRectangle bounds,
+                                             int depth, double lastCost, PresortedBuild build) {
+        final Scratch scratch = build.acquire();
+        try {
+            return buildTreePresorted(triangles, queries, events, bounds, depth, lastCost, build, scratch);
+        } finally {
+            build.release(scratch);
+        }
+    }
+
+    /**
+     * @param scratch Where this node classifies its triangles, only used until it has split its events,
+     *                so the children built on the same thread reuse it.
+     */
+    private static KDNode buildTreePresorted(int[] triangles, int[] queries, Events[] events, BoundingRectangle bounds,
+                                             int depth, double lastCost, PresortedBuild build, Scratch scratch) {
+        final int n = triangles.length;
+        final QueryExtents extents = queries.length == 0 ? null : new QueryExtents(build.queries, queries, bounds);
+        Split[] splits = new Split[events.length];
+        if (build.parallel && events[Dimension.X.ordinal()].values.length >= PARALLEL_SWEEP_THRESHOLD) {
+            ForkJoinTask<Split> y = ForkJoinTask.adapt(() ->
+                    sweep(events[Dimension.Y.ordinal()], n, bounds, Dimension.Y, build.costs, extents)).fork();
+            splits[Dimension.X.ordinal()] = sweep(events[Dimension.X.ordinal()], n, bounds, Dimension.X, build.costs, extents);
+            splits[Dimension.Y.ordinal()] = y.join();
+        } else {
+            for (Dimension d : Dimension.values()) {
+                splits[d.ordinal()] = sweep(events[d.ordinal()], n, bounds, d, build.costs, extents);
+            }
+        }
+
+        // Prefer the first dimension on ties, like the sequential sweep does
+        Split split = splits[0];
+        for (int d = 1; d < splits.length; d++) {
+            if (splits[d].cost < split.cost) {
+                split = splits[d];
+            }
+        }
+
+        final double minCost = split.cost;
+        final SplittingPlaneAffiliation minPlaneAffiliation = split.affiliation;
+
+        final SplittingPlane minPlane = build.compact != null && split.plane != null
+                ? build.compact.round(split.plane, bounds)
+                : split.plane;
+        if (build.costs.intersectionCost * n < minCost || depth > build.costs.maxDepth || lastCost <= minCost
+                || minPlane == null) {
+            // The parent keeps the events' array until its other child is done
+            Arrays.fill(events, null);
+            return KDNode.leaf(bounds, triangles);
+        }
+
+        // With perfect splits, the triangles were clipped to the voxels above, and their
+        // bounds within this voxel are where their events are.
+        final double[] box = scratch.bounds;
+        if (build.perfectSplits) {
+            for (Dimension d : Dimension.values()) {
+                readBounds(events[d.ordinal()], d, box);
+            }
+        }
+
+        // Classify the triangles exactly like buildTreeSAH and remember each one's side
+        final int dmin = FACE_MIN_X + minPlane.dimension.ordinal();
+        final int dmax = FACE_MAX_X + minPlane.dimension.ordinal();
+        final byte[] sides = scratch.sides;
+        int straddling = 0;
+        for (int t : triangles) {
+            final double min = box[4 * t + dmin];
+            final double max = box[4 * t + dmax];
+            byte side = 0;
+            if (min == minPlane.splitValue && max == minPlane.splitValue) {
+                side = minPlaneAffiliation == SplittingPlaneAffiliation.RIGHT ? SIDE_RIGHT : SIDE_LEFT;
+            } else {
+                if (min < minPlane.splitValue) {
+                    side |= SIDE_LEFT;
+                }
+                if (max > minPlane.splitValue) {
+                    side |= SIDE_RIGHT;
+                }
+            }
+            sides[t] = side;
+            if (side == SIDE_BOTH) {
+                straddling++;
+            }
+        }
+
+        // Distribute them, with the bounds of the straddling ones' parts in either child.
+        // With perfect splits, those are clipped to either half, which may leave nothing
+        // of a triangle merely touching the plane.
+        final Tuple2<BoundingRectangle, BoundingRectangle> halves = build.perfectSplits ? splitBoundingRect(bounds, minPlane) : null;
+        final int[] left = new int[n];
+        final int[] right = new int[n];
+        int[] bothLeft = new int[straddling];
+        int[] bothRight = new int[straddling];
+        double[] leftParts = new double[4 * straddling];
+        double[] rightParts = new double[4 * straddling];
+        int l = 0;
+        int r = 0;
+        int bl = 0;
+        int br = 0;
+        final double[] lv = emptyBounds();
+        final double[] rv = emptyBounds();
+        for (int t : triangles) {
+            switch (sides[t]) {
+                case SIDE_LEFT:
+                    left[l++] = t;
+                    mergeBounds(lv, box, 4 * t);
+                    break;
+                case SIDE_RIGHT:
+                    right[r++] = t;
+                    mergeBounds(rv, box, 4 * t);
+                    break;
+                case SIDE_BOTH:
+                    if (halves == null) {
+                        System.arraycopy(box, 4 * t, leftParts, 4 * bl, 4);
+                        System.arraycopy(box, 4 * t, rightParts, 4 * br, 4);
+                    }
+                    if (halves == null || setBounds(leftParts, 4 * bl, clippedBounds(build.triangles[t], halves.v1))) {
+                        left[l++] = t;
+                        mergeBounds(lv, leftParts, 4 * bl);
+                        bothLeft[bl++] = t;
+                    }
+                    if (halves == null || setBounds(rightParts, 4 * br, clippedBounds(build.triangles[t], halves.v2))) {
+                        right[r++] = t;
+                        mergeBounds(rv, rightParts, 4 * br);
+                        bothRight[br++] = t;
+                    }
+                    break;
+            }
+        }
+
+        final BoundingRectangle leftBounds = childVoxel(toRectangle(lv), bounds, minPlane).v1;
+        final BoundingRectangle rightBounds = childVoxel(toRectangle(rv), bounds, minPlane).v2;
+        final int[] leftTriangles = Arrays.copyOf(left, l);
+        final int[] rightTriangles = Arrays.copyOf(right, r);
+        bothLeft = Arrays.copyOf(bothLeft, bl);
+        bothRight = Arrays.copyOf(bothRight, br);
+
+        // Triangles on one side only keep their events: They lie within the child's voxel
+        // as far as they lie within this one.
+        Events[] leftEvents = new Events[events.length];
+        Events[] rightEvents = new Events[events.length];
+        for (Dimension d : Dimension.values()) {
+            final Events sorted = events[d.ordinal()];
+            events[d.ordinal()] = null;
+            leftEvents[d.ordinal()] = merge(sorted, sides, SIDE_LEFT, sortedEvents(bothLeft, leftParts, leftBounds, d));
+            rightEvents[d.ordinal()] = merge(sorted, sides, SIDE_RIGHT, sortedEvents(bothRight, rightParts, rightBounds, d));
+        }
+        final int[] leftQueries = crossing(build.queries, queries, leftBounds);
+        final int[] rightQueries = crossing(build.queries, queries, rightBounds);
+
+        KDNode leftChild;
+        KDNode rightChild;
+        if (depth + 1 == build.lazyDepth) {
+            // Deferred subtrees are built on the querying thread, which may be a worker of the common pool.
+            // They allocate their own scratch, which is garbage once they are built.
+            final PresortedBuild sequential = build.sequential();
+            leftChild = KDNode.deferred(leftBounds, l, () -> buildTreePresorted(leftTriangles, leftQueries,
+                    leftEvents, leftBounds, depth + 1, minCost, sequential, new Scratch(sequential)));
+            rightChild = KDNode.deferred(rightBounds, r, () -> buildTreePresorted(rightTriangles, rightQueries,
+                    rightEvents, rightBounds, depth + 1, minCost, sequential, new Scratch(sequential)));
+        } else if (build.parallel && l >= PARALLEL_BUILD_THRESHOLD && r >= PARALLEL_BUILD_THRESHOLD) {
+            ForkJoinTask<KDNode> task = ForkJoinTask.adapt(() ->
+                    buildTreePresorted(leftTriangles, leftQueries, leftEvents, leftBounds, depth + 1, minCost, build)).fork();
+            rightChild = buildTreePresorted(rightTriangles, rightQueries, rightEvents, rightBounds, depth + 1, minCost, build, scratch);
+            leftChild = task.join();
+        } else {
+            leftChild = buildTreePresorted(leftTriangles, leftQueries, leftEvents, leftBounds, depth + 1, minCost, build, scratch);
+            rightChild = buildTreePresorted(rightTriangles, rightQueries, rightEvents, rightBounds, depth + 1, minCost, build, scratch);
+        }
+
+        return KDNode.inner(bounds, leftChild, rightChild, minPlane);
+    }
+
+    /**
+     * Sweeps over the sorted events of one dimension. Computes the surface area heuristic
+     * like {@link #surfaceAreaHeuristic}, but without creating the halves of the voxel.
+     * With a workload, the probability of visiting either half blends the share of the
+     * queries crossing it with its share of the surface area, which counts as QUERY_PRIOR
+     * queries. Where few queries go, the surface area prevails.
+     * @param triangles The number of triangles in the voxel
+     * @param queries The extents of the workload's queries crossing the voxel, null if there are none
+     * @return The cheapest splitting plane along d, the first one on ties.
+     */
+    private static Split sweep(Events sorted, int triangles, BoundingRectangle bounds, Dimension d, CostModel costs,
+                               @Nullable QueryExtents queries) {
+        final double[] values = sorted.values;
+        final int[] events = sorted.events;
+        final double min = d.getValue(bounds.min);
+        final double max = d.getValue(bounds.max);
+        final double across = d == Dimension.X ? bounds.extent().getY() : bounds.extent().getX();
+        final double area = surfaceArea(bounds);
+
+        final double[] lower = queries == null ? null : queries.lower[d.ordinal()];
+        final double[] upper = queries == null ? null : queries.upper[d.ordinal()];
+        int entered = 0;
+        int exited = 0;
+
+        Split best = Split.NONE;
+        int nleft = 0;
+        int nright = triangles;
+
+        for (int i = 0; i < values.length; ) {
+            final double splitValue = values[i];
+            int pend = 0;
+            int pplanar = 0;
+            int pstart = 0;
+
+            for (; i < values.length && values[i] == splitValue; i++) {
+                final int type = events[i] & EVENT_TYPE;
+                if (type == EventType.END.ord) {
+                    pend++;
+                } else if (type == EventType.PLANAR.ord) {
+                    pplanar++;
+                } else {
+                    pstart++;
+                }
+            }
+
+            nright -= pplanar;
+            nright -= pend;
+
+            double pleft = 2 * ((Math.min(max, splitValue) - min) + across) / area;
+            double pright = 2 * ((max - Math.max(min, splitValue)) + across) / area;
+            if (queries != null) {
+                // Queries reaching the plane visit the left half, those leaving past it the right one
+                while (entered < lower.length && lower[entered] <= splitValue) {
+                    entered++;
+                }
+                while (exited < upper.length && upper[exited] < splitValue) {
+                    exited++;
+                }
+                pleft = (entered + QUERY_PRIOR * pleft) / (lower.length + QUERY_PRIOR);
+                pright = (upper.length - exited + QUERY_PRIOR * pright) / (upper.length + QUERY_PRIOR);
+            }
+            final double costWithLeftAffiliation = calculateCost(pleft, pright, nleft + pplanar, nright, costs);
+            final double costWithRightAffiliation = calculateCost(pleft, pright, nleft, nright + pplanar, costs);
+            final double cost = Math.min(costWithLeftAffiliation, costWithRightAffiliation);
+            if (cost < best.cost) {
+                best = new Split(cost, new SplittingPlane(splitValue, d),
+                        costWithLeftAffiliation < costWithRightAffiliation
+                                ? SplittingPlaneAffiliation.LEFT
+                                : SplittingPlaneAffiliation.RIGHT);
+            }
+
+            nleft += pstart;
+            nleft += pplanar;
+        }
+        return best;
+    }
+
+    /**
+     * @param bounds The bounds of the triangles, four per entry of triangles, laid out like
+     *               {@link PresortedBuild#triangleBounds}
+     * @return The events of the triangles clipped to voxel along d, in sweep order.
+     */
+    private static Events sortedEvents(int[] triangles, double[] bounds, BoundingRectangle voxel, Dimension d) {
+        final double voxelMin = d.getValue(voxel.min);
+        final double voxelMax = d.getValue(voxel.max);
+        int count = 0;
+        for (int i = 0; i < triangles.length; i++) {
+            count += Math.max(voxelMin, bounds[4 * i + FACE_MIN_X + d.ordinal()])
+                    == Math.min(voxelMax, bounds[4 * i + FACE_MAX_X + d.ordinal()]) ? 1 : 2;
+        }
+
+        double[] values = new double[count];
+        int[] events = new int[count];
+        int k = 0;
+        for (int i = 0; i < triangles.length; i++) {
+            final double min = Math.max(voxelMin, bounds[4 * i + FACE_MIN_X + d.ordinal()]);
+            final double max = Math.min(voxelMax, bounds[4 * i + FACE_MAX_X + d.ordinal()]);
+            if (min == max) {
+                values[k] = min;
+                events[k++] = event(triangles[i], EventType.PLANAR);
+            } else {
+                values[k] = min;
+                events[k++] = event(triangles[i], EventType.START);
+                values[k] = max;
+                events[k++] = event(triangles[i], EventType.END);
+            }
+        }
+        sort(values, events);
+        return new Events(values, events);
+    }
+
+    /**
+     * @return The indices 0 to n - 1.
+     */
+    private static int[] all(int n) {
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) {
+            all[i] = i;
+        }
+        return all;
     }
 
-    private static KDNode buildTreeSAH(TriangleRef[] refs, BoundingRectangle bounds, int depth, double lastCost) {
-        double minCost = Double.MAX_VALUE;
-        SplittingPlane minPlane = null;
-        SplittingPlaneAffiliation minPlaneAffiliation = null;
-        int minnleft = Integer.MAX_VALUE;
-        int minnright = Integer.MAX_VALUE;
-
-        List<TriangleEvent> events = new ArrayList<>(refs.length * 2);
+    /**
+     * @param indices Indices of queries
+     * @return Those of the indexed queries crossing the voxel.
+     */
+    private static int[] crossing(Segment[] queries, int[] indices, BoundingRectangle voxel) {
+        final double[] extent = new double[4];
+        int[] crossing = new int[indices.length];
+        int k = 0;
+        for (int q : indices) {
+            if (clip(queries[q], voxel, extent)) {
+                crossing[k++] = q;
+            }
+        }
+        return k == indices.length ? indices : Arrays.copyOf(crossing, k);
+    }
 
+    /**
+     * Clips the segment to the voxel, after Liang and Barsky.
+     * @param extent Receives the bounds of the part of the segment within the voxel, laid out
+     *               like {@link PresortedBuild#triangleBounds}
+     * @return Whether any part of the segment lies within the voxel.
+     */
+    private static boolean clip(Segment s, BoundingRectangle voxel, double[] extent) {
+        double t0 = 0;
+        double t1 = 1;
         for (Dimension d : Dimension.values()) {
-            for (TriangleRef ref : refs) {
-                BoundingRectangle br = bounds.intersect(ref.bounds);
-                if (d.getValue(br.min) == d.getValue(br.max)) {
-                    // The triangle is planar after clipping it to the current Voxel
-                    events.add(new TriangleEvent(ref.triangle, new SplittingPlane(d.getValue(br.min), d), EventType.PLANAR));
-                } else {
-                    events.add(new TriangleEvent(ref.triangle, new SplittingPlane(d.getValue(br.min), d), EventType.START));
-                    events.add(new TriangleEvent(ref.triangle, new SplittingPlane(d.getValue(br.max), d), EventType.END));
+            final double start = d.getValue(s.getStart());
+            final double delta = d.getValue(s.getEnd()) - start;
+            final double min = d.getValue(voxel.min);
+            final double max = d.getValue(voxel.max);
+            if (delta == 0) {
+                if (start < min || start > max) {
+                    return false;
                 }
+            } else {
+                final double a = (min - start) / delta;
+                final double b = (max - start) / delta;
+                t0 = Math.max(t0, Math.min(a, b));
+                t1 = Math.min(t1, Math.max(a, b));
             }
+        }
+        if (t0 > t1) {
+            return false;
+        }
+        for (Dimension d : Dimension.values()) {
+            final double start = d.getValue(s.getStart());
+            final double delta = d.getValue(s.getEnd()) - start;
+            final double from = start + t0 * delta;
+            final double to = start + t1 * delta;
+            // Rounding must not carry the part beyond the voxel
+            extent[FACE_MIN_X + d.ordinal()] = Math.max(d.getValue(voxel.min), Math.min(from, to));
+            extent[FACE_MAX_X + d.ordinal()] = Math.min(d.getValue(voxel.max), Math.max(from, to));
+        }
+        return true;
+    }
 
-            events.sort((a, b) -> {
-                int i1 = (int) Math.signum(a.p.splitValue - b.p.splitValue);
-                int i2 = (int) Math.signum(a.type.ord - b.type.ord);
-                return i1 != 0 ? i1 : i2;
-            }); // As per the order in the paper: Sort by splitValue, then by EventType: END < PLANAR < START
+    /**
+     * Sorts the events by value in place. Arrays.sort only sorts primitives on their own, so
+     * the values are replaced by their ranks, which fit into a long together with the event.
+     * Events of the same value may end up in any order, the sweep only counts them.
+     */
+    private static void sort(double[] values, int[] events) {
+        double[] distinct = values.clone();
+        Arrays.sort(distinct);
+        int m = 0;
+        for (double value : distinct) {
+            // Keep 0.0 and -0.0 apart, binarySearch does too
+            if (m == 0 || Double.compare(value, distinct[m - 1]) != 0) {
+                distinct[m++] = value;
+            }
+        }
 
-            // Now we sweep over the event list and find the minimum cost splitting plane for this dimension.
-            int nleft = 0;
-            int nright = refs.length;
+        long[] keys = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            keys[i] = (long) Arrays.binarySearch(distinct, 0, m, values[i]) << 32 | (events[i] & 0xffffffffL);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = distinct[(int) (keys[i] >>> 32)];
+            events[i] = (int) keys[i];
+        }
+    }
 
-            for (int i = 0; i < events.size(); ) {
-                TriangleEvent evt = events.get(i);
-                int pend = 0;
-                int pplanar = 0;
-                int pstart = 0;
-                final SplittingPlane p = evt.p;
+    /**
+     * @return The events of the triangles on the given side only, merged with the sorted
+     * events of the triangles in both children.
+     */
+    private static Events merge(Events sorted, byte[] sides, byte side, Events straddling) {
+        int count = straddling.values.length;
+        for (int event : sorted.events) {
+            if (sides[event >>> EVENT_TYPE_BITS] == side) {
+                count++;
+            }
+        }
 
-                // aggregate all p* for the same splitValue
-                while (evt.p.splitValue == p.splitValue) {
-                    switch (evt.type) {
-                        case END:
-                            pend++;
-                            break;
-                        case PLANAR:
-                            pplanar++;
-                            break;
-                        case START:
-                            pstart++;
-                            break;
-                    }
+        double[] values = new double[count];
+        int[] events = new int[count];
+        int j = 0;
+        int k = 0;
+        for (int i = 0; i < sorted.values.length; i++) {
+            if (sides[sorted.events[i] >>> EVENT_TYPE_BITS] != side) {
+                continue;
+            }
+            while (j < straddling.values.length && straddling.values[j] < sorted.values[i]) {
+                values[k] = straddling.values[j];
+                events[k++] = straddling.events[j++];
+            }
+            values[k] = sorted.values[i];
+            events[k++] = sorted.events[i];
+        }
+        while (j < straddling.values.length) {
+            values[k] = straddling.values[j];
+            events[k++] = straddling.events[j++];
+        }
+        return new Events(values, events);
+    }
 
-                    if (++i < events.size()) {
-                        evt = events.get(i);
-                    } else {
-                        break;
-                    }
-                }
+    /**
+     * Sets the bounds of the triangles to those of their events along d.
+     */
+    private static void readBounds(Events sorted, Dimension d, double[] bounds) {
+        for (int i = 0; i < sorted.values.length; i++) {
+            final int t = sorted.events[i] >>> EVENT_TYPE_BITS;
+            final int type = sorted.events[i] & EVENT_TYPE;
+            if (type != EventType.END.ord) {
+                bounds[4 * t + FACE_MIN_X + d.ordinal()] = sorted.values[i];
+            }
+            if (type != EventType.START.ord) {
+                bounds[4 * t + FACE_MAX_X + d.ordinal()] = sorted.values[i];
+            }
+        }
+    }
 
-                // Now we got all p* values for the current splitValue.
-                // Move plane *onto* p.
-                nright -= pplanar;
-                nright -= pend;
+    private static int event(int triangle, EventType type) {
+        return triangle << EVENT_TYPE_BITS | type.ord;
+    }
 
-                Tuple2<Double, SplittingPlaneAffiliation> result = surfaceAreaHeuristic(bounds, p, nleft, nright, pplanar);
-                if (result.v1 < minCost) {
-                    minCost = result.v1;
-                    minPlane = p;
-                    minPlaneAffiliation = result.v2;
-                    minnleft = nleft;
-                    minnright = nright;
-                    switch (minPlaneAffiliation) {
-                        case LEFT:
-                            minnleft += pplanar;
-                            break;
-                        case RIGHT:
-                            minnright += pplanar;
-                            break;
-                    }
-                }
+    private static double[] emptyBounds() {
+        return new double[]{Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+    }
 
-                // Move plane *beyond* p
-                nleft += pstart;
-                nleft += pplanar;
+    /**
+     * Grows bounds to include the four bounds at offset, like {@link BoundingRectangle#merge}.
+     */
+    private static void mergeBounds(double[] bounds, double[] other, int offset) {
+        bounds[FACE_MIN_X] = Math.min(bounds[FACE_MIN_X], other[offset + FACE_MIN_X]);
+        bounds[FACE_MIN_Y] = Math.min(bounds[FACE_MIN_Y], other[offset + FACE_MIN_Y]);
+        bounds[FACE_MAX_X] = Math.max(bounds[FACE_MAX_X], other[offset + FACE_MAX_X]);
+        bounds[FACE_MAX_Y] = Math.max(bounds[FACE_MAX_Y], other[offset + FACE_MAX_Y]);
+    }
 
-                assert nleft + nright >= refs.length;
-                assert minnleft + minnright >= refs.length;
-            }
+    /**
+     * Writes the rectangle to bounds at offset.
+     * @return Whether the rectangle isn't empty.
+     */
+    private static boolean setBounds(double[] bounds, int offset, BoundingRectangle rectangle) {
+        bounds[offset + FACE_MIN_X] = rectangle.min.getX();
+        bounds[offset + FACE_MIN_Y] = rectangle.min.getY();
+        bounds[offset + FACE_MAX_X] = rectangle.max.getX();
+        bounds[offset + FACE_MAX_Y] = rectangle.max.getY();
+        return !rectangle.isEmpty();
+    }
 
-            events.clear();
+    private static BoundingRectangle toRectangle(double[] bounds) {
+        return new BoundingRectangle(
+                new Point2D(bounds[FACE_MIN_X], bounds[FACE_MIN_Y]),
+                new Point2D(bounds[FACE_MAX_X], bounds[FACE_MAX_Y]));
+    }
+
+    private static KDNode buildTreeTopDown(TriangleRef[] refs, BoundingRectangle bounds, SplitChooser splitChooser,
+                                           BuildOptions options, @Nullable CompactGeometry compact) {
+        final SplitChooser chooser = compact == null ? splitChooser : (r, b, lastCost, costs) -> {
+            final Split split = splitChooser.choose(r, b, lastCost, costs);
+            final SplittingPlane plane = split == null ? null : compact.round(split.plane, b);
+            return plane == null ? null : new Split(split.cost, plane, split.affiliation);
+        };
+        if (options.parallelBuild) {
+            return ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() ->
+                    buildTreeTopDown(refs, bounds, 0, Double.MAX_VALUE, chooser, options.costModel, true, options.lazyDepth)));
         }
+        return buildTreeTopDown(refs, bounds, 0, Double.MAX_VALUE, chooser, options.costModel, false, options.lazyDepth);
+    }
 
-        if (INTERSECTION_COST * refs.length < minCost || depth > 30 || lastCost <= minCost) {
+    /**
+     * Builds a tree by splitting every voxel at the plane the chooser picks, until it picks none.
+     * Triangles are assigned to the children like in {@link #buildTreeSAH}.
+     */
+    private static KDNode buildTreeTopDown(TriangleRef[] refs, BoundingRectangle bounds, int depth, double lastCost,
+                                           SplitChooser chooser, CostModel costs, boolean parallel, int lazyDepth) {
+        final Split split = depth > costs.maxDepth ? null : chooser.choose(refs, bounds, lastCost, costs);
+        if (split == null) {
             return KDNode.leaf(bounds, refs);
         }
 
-        assert refs.length > 1;
-
-        // We found the best splitting plane and the associated costs, all that is left to do is split.
-        TriangleRef[] left = new TriangleRef[minnleft];
-        TriangleRef[] right = new TriangleRef[minnright];
-        int l = 0;
-        int r = 0;
+        final SplittingPlane p = split.plane;
+        List<TriangleRef> left = new ArrayList<>(refs.length);
+        List<TriangleRef> right = new ArrayList<>(refs.length);
         BoundingRectangle lv = BoundingRectangle.EMPTY;
         BoundingRectangle rv = BoundingRectangle.EMPTY;
         for (TriangleRef ref : refs) {
-            if (minPlane.dimension.getValue(ref.bounds.min) == minPlane.splitValue
-                    && minPlane.dimension.getValue(ref.bounds.max) == minPlane.splitValue) {
-                if (minPlaneAffiliation == SplittingPlaneAffiliation.RIGHT) {
-                    right[r++] = ref;
+            final double min = p.dimension.getValue(ref.bounds.min);
+            final double max = p.dimension.getValue(ref.bounds.max);
+            if (min == p.splitValue && max == p.splitValue) {
+                if (split.affiliation == SplittingPlaneAffiliation.RIGHT) {
+                    right.add(ref);
                     rv = rv.merge(ref.bounds);
                 } else {
-                    left[l++] = ref;
+                    left.add(ref);
                     lv = lv.merge(ref.bounds);
                 }
             } else {
-                if (minPlane.dimension.getValue(ref.bounds.min) < minPlane.splitValue) {
-                    left[l++] = ref;
+                if (min < p.splitValue) {
+                    left.add(ref);
                     lv = lv.merge(ref.bounds);
                 }
-                if (minPlane.dimension.getValue(ref.bounds.max) > minPlane.splitValue) {
-                    right[r++] = ref;
+                if (max > p.splitValue) {
+                    right.add(ref);
                     rv = rv.merge(ref.bounds);
                 }
-                // In the remaining case where min == max == splitValue, the triangle
-                // is planar (extent == 0) and will we dealt with in the other if branch
-                // according to minPlaneAffiliation.
             }
         }
 
-        lv = splitBoundingRect(lv.intersect(bounds), minPlane).v1; // I hope this is accurate enough. don't want clip all triangles
-        rv = splitBoundingRect(rv.intersect(bounds), minPlane).v2;
+        // Give up on planes leaving all of the voxel's triangles in both children. Splits by the
+        // surface area heuristic may leave one child with all of them and the other one empty,
+        // cutting off empty space, which the heuristic has priced in. Median splits come without
+        // a cost and would cut off empty space forever, so neither child may keep all of them.
+        final boolean costed = split.cost < Double.MAX_VALUE;
+        final boolean separates = costed
+                ? left.size() < refs.length || right.size() < refs.length
+                : left.size() < refs.length && right.size() < refs.length;
+        if (!separates) {
+            return KDNode.leaf(bounds, refs);
+        }
 
-        assert l == left.length;
-        assert r == right.length;
+        final TriangleRef[] leftRefs = left.toArray(new TriangleRef[left.size()]);
+        final TriangleRef[] rightRefs = right.toArray(new TriangleRef[right.size()]);
+        final BoundingRectangle leftBounds = childVoxel(lv, bounds, p).v1;
+        final BoundingRectangle rightBounds = childVoxel(rv, bounds, p).v2;
+        KDNode leftChild;
+        KDNode rightChild;
+        if (depth + 1 == lazyDepth) {
+            leftChild = KDNode.deferred(leftBounds, leftRefs.length, () ->
+                    buildTreeTopDown(leftRefs, leftBounds, depth + 1, split.cost, chooser, costs, false, lazyDepth));
+            rightChild = KDNode.deferred(rightBounds, rightRefs.length, () ->
+                    buildTreeTopDown(rightRefs, rightBounds, depth + 1, split.cost, chooser, costs, false, lazyDepth));
+        } else if (parallel && leftRefs.length >= PARALLEL_BUILD_THRESHOLD && rightRefs.length >= PARALLEL_BUILD_THRESHOLD) {
+            ForkJoinTask<KDNode> task = ForkJoinTask.adapt(() ->
+                    buildTreeTopDown(leftRefs, leftBounds, depth + 1, split.cost, chooser, costs, true, lazyDepth)).fork();
+            rightChild = buildTreeTopDown(rightRefs, rightBounds, depth + 1, split.cost, chooser, costs, true, lazyDepth);
+            leftChild = task.join();
+        } else {
+            leftChild = buildTreeTopDown(leftRefs, leftBounds, depth + 1, split.cost, chooser, costs, parallel, lazyDepth);
+            rightChild = buildTreeTopDown(rightRefs, rightBounds, depth + 1, split.cost, chooser, costs, parallel, lazyDepth);
+        }
 
-        KDNode leftChild = buildTreeSAH(left, lv, depth + 1, minCost);
-        KDNode rightChild = buildTreeSAH(right, rv, depth + 1, minCost);
+        return KDNode.inner(bounds, leftChild, rightChild, p);
+    }
 
-        return KDNode.inner(bounds, leftChild, rightChild, minPlane);
+    /**
+     * Approximates the sweep by evaluating the surface area heuristic only at SAH_BINS - 1 evenly
+     * spaced planes per dimension. The triangles are counted into bins by where they start and end,
+     * so a node takes linear time. Stops like {@link #buildTreeSAH}.
+     */
+    @Nullable
+    private static Split binnedSplit(TriangleRef[] refs, BoundingRectangle bounds, double lastCost, CostModel costs) {
+        Split min = Split.NONE;
+        int[] starts = new int[SAH_BINS];
+        int[] ends = new int[SAH_BINS];
+        for (Dimension d : Dimension.values()) {
+            final double lo = d.getValue(bounds.min);
+            final double extent = d.getValue(bounds.max) - lo;
+            if (!(extent > 0)) {
+                continue;
+            }
+            Arrays.fill(starts, 0);
+            Arrays.fill(ends, 0);
+            for (TriangleRef ref : refs) {
+                BoundingRectangle br = bounds.intersect(ref.bounds);
+                starts[bin(d.getValue(br.min), lo, extent)]++;
+                ends[bin(d.getValue(br.max), lo, extent)]++;
+            }
+
+            // The plane between bins i - 1 and i has the triangles starting before it to its
+            // left and those ending after it to its right.
+            int nleft = 0;
+            int nright = refs.length;
+            for (int i = 1; i < SAH_BINS; i++) {
+                nleft += starts[i - 1];
+                nright -= ends[i - 1];
+                final SplittingPlane p = new SplittingPlane(lo + extent * i / SAH_BINS, d);
+                Tuple2<Double, SplittingPlaneAffiliation> result = surfaceAreaHeuristic(bounds, p, nleft, nright, 0, costs);
+                if (result.v1 < min.cost) {
+                    min = new Split(result.v1, p, result.v2);
+                }
+            }
+        }
+
+        if (costs.intersectionCost * refs.length < min.cost || lastCost <= min.cost) {
+            return null;
+        }
+        return min;
+    }
+
+    private static int bin(double value, double lo, double extent) {
+        return Math.max(0, Math.min(SAH_BINS - 1, (int) ((value - lo) / extent * SAH_BINS)));
+    }
+
+    /**
+     * Splits the voxel's longer side in half, until MEDIAN_LEAF_SIZE triangles are left.
+     */
+    @Nullable
+    private static Split spatialMedianSplit(TriangleRef[] refs, BoundingRectangle bounds, double lastCost, CostModel costs) {
+        if (refs.length <= MEDIAN_LEAF_SIZE) {
+            return null;
+        }
+        final Dimension d = longerSide(bounds);
+        return new Split(Double.MAX_VALUE, new SplittingPlane(d.getValue(bounds.mid), d),
+                SplittingPlaneAffiliation.LEFT);
+    }
+
+    /**
+     * Splits the voxel's longer side at the median of the triangles' centers, until
+     * MEDIAN_LEAF_SIZE triangles are left.
+     */
+    @Nullable
+    private static Split objectMedianSplit(TriangleRef[] refs, BoundingRectangle bounds, double lastCost, CostModel costs) {
+        if (refs.length <= MEDIAN_LEAF_SIZE) {
+            return null;
+        }
+        final Dimension d = longerSide(bounds);
+        double[] centers = new double[refs.length];
+        for (int i = 0; i < refs.length; i++) {
+            centers[i] = d.getValue(bounds.intersect(refs[i].bounds).mid);
+        }
+        Arrays.sort(centers);
+        return new Split(Double.MAX_VALUE, new SplittingPlane(centers[centers.length / 2], d),
+                SplittingPlaneAffiliation.LEFT);
+    }
+
+    private static Dimension longerSide(BoundingRectangle bounds) {
+        final Point2D extent = bounds.extent();
+        return extent.getX() >= extent.getY() ? Dimension.X : Dimension.Y;
+    }
+
+    /**
+     * The expected cost of a query by the surface area heuristic: The cost of every node,
+     * weighted by the probability of a query visiting it.
+     */
+    private static double expectedCost(KDNode node, CostModel costs) {
+        return node.isLeaf()
+                ? node.surfaceArea * costs.intersectionCost * (node.deferred != null ? node.deferred.triangles : node.triangles.length)
+                : node.surfaceArea * costs.traversalCost + expectedCost(node.left, costs) + expectedCost(node.right, costs);
     }
 
-    private static Tuple2<Double, SplittingPlaneAffiliation> surfaceAreaHeuristic(BoundingRectangle V, SplittingPlane p, int nleft, int nright, int nplanar) {
+    private static Tuple2<Double, SplittingPlaneAffiliation> surfaceAreaHeuristic(BoundingRectangle V, SplittingPlane p, int nleft, int nright, int nplanar, CostModel costs) {
         Tuple2<BoundingRectangle, BoundingRectangle> split = splitBoundingRect(V, p);
 
         final double pleft = surfaceArea(split.v1) / surfaceArea(V);
         final double pright = surfaceArea(split.v2) / surfaceArea(V);
 
-        final double costWithLeftAffiliation = calculateCost(pleft, pright, nleft + nplanar, nright);
-        final double costWithRightAffiliation = calculateCost(pleft, pright, nleft, nright + nplanar);
+        final double costWithLeftAffiliation = calculateCost(pleft, pright, nleft + nplanar, nright, costs);
+        final double costWithRightAffiliation = calculateCost(pleft, pright, nleft, nright + nplanar, costs);
 
         return costWithLeftAffiliation < costWithRightAffiliation
                 ? tuple(costWithLeftAffiliation, SplittingPlaneAffiliation.LEFT)
                 : tuple(costWithRightAffiliation, SplittingPlaneAffiliation.RIGHT);
     }
 
-    private static double calculateCost(double pleft, double pright, int nleft, int nright) {
-        final double lambda = nleft == 0 || nright == 0 ? 0.8 : 1.0;
-        // lambda doesn't seem to work for us...
-        return (TRAVERSAL_COST + INTERSECTION_COST * (pleft * nleft + pright * nright));
+    private static double calculateCost(double pleft, double pright, int nleft, int nright, CostModel costs) {
+        // Only planes inside the voxel cut off empty space. Those on its boundary would only
+        // produce an empty child of no extent, and then the same voxel again, forever.
+        final boolean cutsOffEmptySpace = (nleft == 0 || nright == 0) && pleft > 0 && pright > 0;
+        final double lambda = cutsOffEmptySpace ? costs.emptySpaceBonus : 1.0;
+        return lambda * (costs.traversalCost + costs.intersectionCost * (pleft * nleft + pright * nright));
+    }
+
+    /**
+     * @return A reference to the triangle bounded by its part within voxel.
+     */
+    private static TriangleRef clipTo(TriangleRef ref, BoundingRectangle voxel) {
+        return new TriangleRef(ref.triangle, ref.index, clippedBounds(ref.triangle, voxel));
+    }
+
+    /**
+     * Clips the triangle to the voxel, one side at a time (Sutherland-Hodgman).
+     * @return The bounds of the triangle's part within the voxel. They are padded by a few ulps,
+     * since the intersections of the triangle's edges with the voxel are rounded.
+     */
+    private static BoundingRectangle clippedBounds(Triangle t, BoundingRectangle voxel) {
+        double[] xs = {t.a.getX(), t.b.getX(), t.c.getX(), 0, 0, 0, 0};
+        double[] ys = {t.a.getY(), t.b.getY(), t.c.getY(), 0, 0, 0, 0};
+        double[] clippedXs = new double[xs.length];
+        double[] clippedYs = new double[ys.length];
+        int n = 3;
+        for (int face = 0; face < 4 && n > 0; face++) {
+            final boolean atX = face == FACE_MIN_X || face == FACE_MAX_X;
+            final boolean atMin = face == FACE_MIN_X || face == FACE_MIN_Y;
+            final double bound = atX
+                    ? (atMin ? voxel.min.getX() : voxel.max.getX())
+                    : (atMin ? voxel.min.getY() : voxel.max.getY());
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                final int j = (i + 1) % n;
+                final double vi = atX ? xs[i] : ys[i];
+                final double vj = atX ? xs[j] : ys[j];
+                final boolean insideI = atMin ? vi >= bound : vi <= bound;
+                final boolean insideJ = atMin ? vj >= bound : vj <= bound;
+                if (insideI) {
+                    clippedXs[m] = xs[i];
+                    clippedYs[m++] = ys[i];
+                }
+                if (insideI != insideJ) {
+                    final double f = (bound - vi) / (vj - vi);
+                    clippedXs[m] = atX ? bound : xs[i] + f * (xs[j] - xs[i]);
+                    clippedYs[m++] = atX ? ys[i] + f * (ys[j] - ys[i]) : bound;
+                }
+            }
+            double[] swap = xs;
+            xs = clippedXs;
+            clippedXs = swap;
+            swap = ys;
+            ys = clippedYs;
+            clippedYs = swap;
+            n = m;
+        }
+        if (n == 0) {
+            return BoundingRectangle.EMPTY;
+        }
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        final double padX = 4 * Math.ulp(Math.max(Math.abs(minX), Math.abs(maxX)));
+        final double padY = 4 * Math.ulp(Math.max(Math.abs(minY), Math.abs(maxY)));
+        return new BoundingRectangle(new Point2D(minX - padX, minY - padY), new Point2D(maxX + padX, maxY + padY))
+                .intersect(voxel)
+                .intersect(BoundingRectangle.fromPoints(t));
+    }
+
+    /**
+     * Splits the voxel of a child's triangles, clipped to its parent's voxel, at p. A child
+     * without triangles gets its half of the parent's voxel.
+     */
+    private static Tuple2<BoundingRectangle, BoundingRectangle> childVoxel(BoundingRectangle triangles, BoundingRectangle bounds, SplittingPlane p) {
+        return splitBoundingRect(triangles.isEmpty() ? bounds : triangles.intersect(bounds), p);
     }
 
     private static double surfaceArea(BoundingRectangle v) {
@@ -288,75 +2373,316 @@ public class KDTree implements SpatialDataStructure {
 
     private static class TriangleRef {
         public final Triangle triangle;
+        public final int index;
         public final BoundingRectangle bounds;
-        //boolean alreadyChecked; // This is for a mailboxing mechanism
 
-        public TriangleRef(Triangle triangle) {
-            this(triangle, BoundingRectangle.fromPoints(triangle));
+        public TriangleRef(Triangle triangle, int index) {
+            this(triangle, index, BoundingRectangle.fromPoints(triangle));
             assert triangle != null;
         }
 
-        public TriangleRef(Triangle triangle, BoundingRectangle bounds) {
+        public TriangleRef(Triangle triangle, int index, BoundingRectangle bounds) {
             this.triangle = triangle;
+            this.index = index;
             this.bounds = bounds;
         }
     }
 
     private static class KDNode {
-        public final BoundingRectangle bounds;
+        // Only the surface area of the node's voxel is needed for the tree's expected cost
+        public final double surfaceArea;
         public final KDNode right;
         public final KDNode left;
-        public final TriangleRef[] refs;
+        // The indices of a leaf's triangles
+        public final int[] triangles;
         public final SplittingPlane splittingPlane;
+        // For a leaf standing in for a subtree built later, that subtree
+        public final Deferred deferred;
 
-        private KDNode(BoundingRectangle bounds, KDNode left, KDNode right, TriangleRef[] refs, SplittingPlane splittingPlane) {
-            this.bounds = bounds;
+        private KDNode(BoundingRectangle bounds, KDNode left, KDNode right, int[] triangles, SplittingPlane splittingPlane,
+                       Deferred deferred) {
+            this.surfaceArea = surfaceArea(bounds);
             this.right = right;
             this.left = left;
-            this.refs = refs;
+            this.triangles = triangles;
             this.splittingPlane = splittingPlane;
+            this.deferred = deferred;
+        }
+
+        public static KDNode leaf(BoundingRectangle bounds, int[] triangles) {
+            return new KDNode(bounds, null, null, triangles, null, null);
+        }
+
+        /**
+         * @param triangles The number of triangles in the subtree
+         * @param build Builds the subtree
+         */
+        public static KDNode deferred(BoundingRectangle bounds, int triangles, Supplier<KDNode> build) {
+            return new KDNode(bounds, null, null, new int[0], null, new Deferred(bounds, triangles, build));
         }
 
         public static KDNode leaf(BoundingRectangle bounds, TriangleRef[] refs) {
-            return new KDNode(bounds, null, null, refs, null);
+            int[] triangles = new int[refs.length];
+            for (int i = 0; i < refs.length; i++) {
+                triangles[i] = refs[i].index;
+            }
+            return leaf(bounds, triangles);
         }
 
         public static KDNode inner(BoundingRectangle bounds, KDNode left, KDNode right, SplittingPlane p) {
-            return new KDNode(bounds, left, right, null, p);
+            return new KDNode(bounds, left, right, null, p, null);
         }
 
         public boolean isLeaf() {
             boolean isLeaf = left == null;
             assert isLeaf == (right == null);
-            assert isLeaf == (refs != null);
-            assert !isLeaf || refs.length > 0;
+            assert isLeaf == (triangles != null);
             return left == null;
         }
     }
 
+    /**
+     * A subtree below the lazy depth, see {@link BuildOptions#lazyDepth}. The first query reaching
+     * it builds it into a tree of its own, which shares the triangles of the tree above.
+     */
+    private static class Deferred {
+        public final BoundingRectangle bounds;
+        public final int triangles;
+        private Supplier<KDNode> build;
+        private volatile KDTree tree;
+        private final AtomicBoolean requested = new AtomicBoolean();
+        // The build in the background, once requested
+        private volatile CompletableFuture<KDTree> background;
+
+        Deferred(BoundingRectangle bounds, int triangles, Supplier<KDNode> build) {
+            this.bounds = bounds;
+            this.triangles = triangles;
+            this.build = build;
+        }
+
+        boolean isBuilt() {
+            return tree != null;
+        }
+
+        /**
+         * Builds the subtree on the common pool, unless it is built or being built already.
+         */
+        void buildInBackground(KDTree above) {
+            if (tree == null && requested.compareAndSet(false, true)) {
+                background = CompletableFuture.supplyAsync(() -> get(above), ForkJoinPool.commonPool());
+            }
+        }
+
+        /**
+         * @param above The tree the subtree is deferred in
+         * @return The subtree, built by the first thread to ask for it, while any others wait.
+         */
+        KDTree get(KDTree above) {
+            KDTree tree = this.tree;
+            if (tree == null) {
+                synchronized (this) {
+                    tree = this.tree;
+                    if (tree == null) {
+                        final long begin = System.nanoTime();
+                        final KDNode root = build.get();
+                        tree = new KDTree(root, above.triangles, bounds,
+                                above.options.withLazyDepth(0).withBuildReport(false), above.compact,
+                                0, System.nanoTime() - begin);
+                        this.tree = tree;
+                        // Let go of the build's events
+                        build = null;
+                    }
+                }
+            }
+            return tree;
+        }
+    }
+
     public void visitHalfPlanes(BiConsumer<Segment, Integer> visitor) {
-        if (root == null) return;
+        if (axes.length == 0) return;
 
-        visitHalfPlanes(visitor, root, 0);
+        visitHalfPlanes(visitor, 0, bounds, 0);
     }
 
-    public void visitHalfPlanes(BiConsumer<Segment, Integer> visitor, KDNode node, int depth) {
-        if (node.isLeaf()) { //|| depth > 8) {
+    private void visitHalfPlanes(BiConsumer<Segment, Integer> visitor, int node, BoundingRectangle bounds, int depth) {
+        if (axes[node] == LEAF) { //|| depth > 8) {
             return;
         } else {
-            if (node.splittingPlane.dimension == Dimension.X) {
-                Point2D start = new Point2D(node.splittingPlane.splitValue, node.bounds.min.getY());
-                Point2D end = new Point2D(node.splittingPlane.splitValue, node.bounds.max.getY());
+            SplittingPlane p = new SplittingPlane(splitValue(node), axes[node] == AXIS_X ? Dimension.X : Dimension.Y);
+            if (p.dimension == Dimension.X) {
+                Point2D start = new Point2D(p.splitValue, bounds.min.getY());
+                Point2D end = new Point2D(p.splitValue, bounds.max.getY());
                 visitor.accept(new Segment(start, end), depth);
-                visitHalfPlanes(visitor, node.left, depth + 1);
-                //visitHalfPlanes(visitor, node.right, depth+1);
             } else {
-                Point2D start = new Point2D(node.bounds.min.getX(), node.splittingPlane.splitValue);
-                Point2D end = new Point2D(node.bounds.max.getX(), node.splittingPlane.splitValue);
+                Point2D start = new Point2D(bounds.min.getX(), p.splitValue);
+                Point2D end = new Point2D(bounds.max.getX(), p.splitValue);
                 visitor.accept(new Segment(start, end), depth);
-                visitHalfPlanes(visitor, node.left, depth + 1);
-                //visitHalfPlanes(visitor, node.right, depth+1);
             }
+            Tuple2<BoundingRectangle, BoundingRectangle> split = splitBoundingRect(bounds, p);
+            visitHalfPlanes(visitor, node + 1, split.v1, depth + 1);
+            //visitHalfPlanes(visitor, children[node], split.v2, depth+1);
+        }
+    }
+
+
+    /**
+     * The geometry of a tree in compact mode, see {@link BuildOptions#compactGeometry}. Each tree keeps
+     * its leaves' vertices and splitting planes as floats relative to the origin, those vertices only
+     * precise enough to find the triangles a segment's line passes through. Those are then tested
+     * exactly against the vertices kept here, once per triangle instead of once per reference.
+     * The splitting planes are rounded while building, so that they are exactly what the floats store:
+     * Multiples of a power of two, the quantum, which is coarse enough for every offset from the
+     * origin within the bounds of the tree to have a float of its own.
+     */
+    private static class CompactGeometry {
+        public final double originX, originY;
+        public final double quantum;
+        // Bounds the error of the line test due to vertices rounded to floats
+        public final double slack;
+        // ax, ay, bx, by, cx, cy of triangle i at 6 * i
+        public final double[] vertices;
+
+        CompactGeometry(Triangle[] triangles, BoundingRectangle bounds) {
+            if (triangles.length == 0) {
+                quantum = 1;
+                originX = originY = 0;
+            } else {
+                final double maxOffset = Math.max(bounds.max.getX() - bounds.mid.getX(), bounds.max.getY() - bounds.mid.getY());
+                // Twice the ulp, since the rounded origin and planes may be a little further out
+                quantum = 2 * Math.ulp((float) Math.max(maxOffset, Float.MIN_NORMAL));
+                originX = quantum * Math.rint(bounds.mid.getX() / quantum);
+                originY = quantum * Math.rint(bounds.mid.getY() / quantum);
+            }
+            // Each coordinate is off by at most half an ulp, which is at most half the quantum,
+            // the line test by at most sqrt(2) times that. The rest is leeway for its arithmetic.
+            slack = 2 * quantum;
+            vertices = new double[6 * triangles.length];
+            for (int i = 0; i < triangles.length; i++) {
+                final Triangle t = triangles[i];
+                vertices[6 * i] = t.a.getX();
+                vertices[6 * i + 1] = t.a.getY();
+                vertices[6 * i + 2] = t.b.getX();
+                vertices[6 * i + 3] = t.b.getY();
+                vertices[6 * i + 4] = t.c.getX();
+                vertices[6 * i + 5] = t.c.getY();
+            }
+        }
+
+        /**
+         * @return The plane moved to the nearest multiple of the quantum, or null unless that
+         * is strictly within the voxel, which is then too thin to be split.
+         */
+        @Nullable
+        SplittingPlane round(SplittingPlane p, BoundingRectangle voxel) {
+            final double origin = p.dimension == Dimension.X ? originX : originY;
+            final double splitValue = origin + quantum * Math.rint((p.splitValue - origin) / quantum);
+            return splitValue <= p.dimension.getValue(voxel.min) || splitValue >= p.dimension.getValue(voxel.max)
+                    ? null
+                    : new SplittingPlane(splitValue, p.dimension);
+        }
+
+        /**
+         * @param p A plane rounded by {@link #round(SplittingPlane)}
+         * @return The plane's offset from the origin, which is exact.
+         */
+        float toFloat(SplittingPlane p) {
+            return (float) (p.splitValue - (p.dimension == Dimension.X ? originX : originY));
+        }
+
+        double distanceToTriangle(Segment seg, int i) {
+            return seg.distanceToTriangle(vertices[6 * i], vertices[6 * i + 1], vertices[6 * i + 2],
+                    vertices[6 * i + 3], vertices[6 * i + 4], vertices[6 * i + 5]);
+        }
+
+        boolean intersectsTriangle(Segment seg, int i) {
+            return seg.intersectsTriangle(vertices[6 * i], vertices[6 * i + 1], vertices[6 * i + 2],
+                    vertices[6 * i + 3], vertices[6 * i + 4], vertices[6 * i + 5]);
+        }
+
+        Triangle[] triangles() {
+            Triangle[] triangles = new Triangle[vertices.length / 6];
+            for (int i = 0; i < triangles.length; i++) {
+                triangles[i] = new Triangle(new Point2D(vertices[6 * i], vertices[6 * i + 1]),
+                        new Point2D(vertices[6 * i + 2], vertices[6 * i + 3]),
+                        new Point2D(vertices[6 * i + 4], vertices[6 * i + 5]));
+            }
+            return triangles;
+        }
+    }
+
+    /**
+     * A packet of segments traversed together, along with its reusable traversal stack.
+     * Every thread gets its own through PACKETS.
+     */
+    private static class Packet {
+        public static final int SIZE = 8;
+
+        public final Segment[] segments = new Segment[SIZE];
+        public final int[] indices = new int[SIZE];
+        public final double[] sx = new double[SIZE];
+        public final double[] sy = new double[SIZE];
+        public final double[] dx = new double[SIZE];
+        public final double[] dy = new double[SIZE];
+        public final double[] tmin = new double[SIZE];
+        public final double[] tmax = new double[SIZE];
+        // Scratch space for leaves: The segments overlapping it and their nearest intersection
+        public final int[] rays = new int[SIZE];
+        public final double[] min = new double[SIZE];
+        public int quadrant;
+        public int size;
+
+        // Stack entries consist of a node, the mask of segments overlapping it and their intervals
+        public int[] stackNodes = new int[64];
+        public int[] stackMasks = new int[64];
+        public double[] stackTmins = new double[64 * SIZE];
+        public double[] stackTmaxs = new double[64 * SIZE];
+        public int stackSize;
+
+        public static int quadrant(Segment s) {
+            Point2D dir = s.getDirection();
+            return (dir.getX() < 0 ? 1 : 0) | (dir.getY() < 0 ? 2 : 0);
+        }
+
+        public void clear() {
+            Arrays.fill(segments, null);
+            size = 0;
+        }
+
+        public void add(Segment s, int index) {
+            assert size < SIZE;
+            assert size == 0 || quadrant(s) == quadrant;
+            quadrant = quadrant(s);
+            segments[size] = s;
+            indices[size] = index;
+            sx[size] = s.getStart().getX();
+            sy[size] = s.getStart().getY();
+            dx[size] = s.getDirection().getX();
+            dy[size] = s.getDirection().getY();
+            size++;
+        }
+
+        /**
+         * @return The index of the next stack entry, which only becomes part of the stack on commitStackEntry.
+         */
+        public int reserveStackEntry() {
+            if (stackSize == stackNodes.length) {
+                stackNodes = Arrays.copyOf(stackNodes, stackSize * 2);
+                stackMasks = Arrays.copyOf(stackMasks, stackSize * 2);
+                stackTmins = Arrays.copyOf(stackTmins, stackSize * 2 * SIZE);
+                stackTmaxs = Arrays.copyOf(stackTmaxs, stackSize * 2 * SIZE);
+            }
+            return stackSize;
+        }
+
+        public void pushInterval(int entry, int i, double tmin, double tmax) {
+            stackTmins[entry * SIZE + i] = tmin;
+            stackTmaxs[entry * SIZE + i] = tmax;
+        }
+
+        public void commitStackEntry(int node, int mask) {
+            stackNodes[stackSize] = node;
+            stackMasks[stackSize] = mask;
+            stackSize++;
         }
     }
 
@@ -370,6 +2696,196 @@ public class KDTree implements SpatialDataStructure {
         }
     }
 
+    // A node builds its subtrees concurrently if both have at least this many triangles,
+    // and sweeps its dimensions concurrently if it has at least this many events.
+    private static final int PARALLEL_BUILD_THRESHOLD = 1024;
+    private static final int PARALLEL_SWEEP_THRESHOLD = 16384;
+
+    // How many queries of a workload the surface area counts as, see sweep. Fewer let a
+    // concentrated workload starve the rest of the tree, which other queries pay for.
+    private static final double QUERY_PRIOR = 128;
+
+    private static final int SAH_BINS = 32;
+    private static final int MEDIAN_LEAF_SIZE = 8;
+
+    /**
+     * Picks the plane to split a voxel at.
+     */
+    private interface SplitChooser {
+        /**
+         * @param lastCost The cost of the split creating this voxel
+         * @return The split, or null to make the voxel a leaf.
+         */
+        @Nullable
+        Split choose(TriangleRef[] refs, BoundingRectangle bounds, double lastCost, CostModel costs);
+    }
+
+    /**
+     * The state shared by the nodes of a presorted build.
+     */
+    private static class PresortedBuild {
+        public final Triangle[] triangles;
+        // The bounds of every triangle as minX, minY, maxX, maxY at 4 * its index,
+        // the same order as the FACE_* constants
+        public final double[] triangleBounds;
+        // Scratch no subtree is being built with. There is at most one per subtree built
+        // concurrently, since forked subtrees take their own, but pass it down to the nodes below.
+        // Dropped once the tree is built, deferred subtrees allocate their own.
+        private final Queue<Scratch> scratch;
+        public final CostModel costs;
+        public final boolean perfectSplits;
+        public final boolean parallel;
+        public final int lazyDepth;
+        // The compact geometry to round splitting planes for, or null
+        @Nullable
+        public final CompactGeometry compact;
+        // The workload the surface area heuristic is weighted by, empty without one
+        public final Segment[] queries;
+
+        PresortedBuild(Triangle[] triangles, double[] triangleBounds, BuildOptions options, @Nullable CompactGeometry compact) {
+            this.triangles = triangles;
+            this.triangleBounds = triangleBounds;
+            this.scratch = new ConcurrentLinkedQueue<>();
+            this.costs = options.costModel;
+            this.perfectSplits = options.perfectSplits;
+            this.parallel = options.parallelBuild;
+            this.lazyDepth = options.lazyDepth;
+            this.compact = compact;
+            this.queries = options.workload == null
+                    ? new Segment[0]
+                    : options.workload.toArray(new Segment[options.workload.size()]);
+        }
+
+        private PresortedBuild(PresortedBuild build, boolean parallel) {
+            this.triangles = build.triangles;
+            this.triangleBounds = build.triangleBounds;
+            this.scratch = build.scratch;
+            this.costs = build.costs;
+            this.perfectSplits = build.perfectSplits;
+            this.parallel = parallel;
+            this.lazyDepth = build.lazyDepth;
+            this.compact = build.compact;
+            this.queries = build.queries;
+        }
+
+        /**
+         * @return The same build, but without forking subtrees.
+         */
+        PresortedBuild sequential() {
+            return parallel ? new PresortedBuild(this, false) : this;
+        }
+
+        /**
+         * @return Scratch no other subtree is being built with.
+         */
+        Scratch acquire() {
+            final Scratch free = scratch.poll();
+            return free != null ? free : new Scratch(this);
+        }
+
+        /**
+         * Lets other subtrees build with the scratch.
+         */
+        void release(Scratch free) {
+            scratch.add(free);
+        }
+
+        void dropScratch() {
+            scratch.clear();
+        }
+    }
+
+    /**
+     * Scratch space of {@link #buildTreePresorted}, indexed by triangle.
+     */
+    private static class Scratch {
+        // The side of every triangle
+        public final byte[] sides;
+        // The bounds of the triangles within the current voxel, laid out like triangleBounds.
+        // They only differ from those with perfect splits, where every node fills them from its events.
+        public final double[] bounds;
+
+        Scratch(PresortedBuild build) {
+            this.sides = new byte[build.triangles.length];
+            this.bounds = build.perfectSplits ? new double[build.triangleBounds.length] : build.triangleBounds;
+        }
+    }
+
+    /**
+     * Where the queries crossing a voxel lie within it, to weigh the surface area heuristic by.
+     */
+    private static class QueryExtents {
+        // The lower and upper bounds of the queries' parts within the voxel, sorted separately
+        // and indexed by dimension
+        public final double[][] lower = new double[Dimension.values().length][];
+        public final double[][] upper = new double[Dimension.values().length][];
+
+        /**
+         * @param crossing The indices of the queries crossing the voxel
+         */
+        QueryExtents(Segment[] queries, int[] crossing, BoundingRectangle voxel) {
+            for (Dimension d : Dimension.values()) {
+                lower[d.ordinal()] = new double[crossing.length];
+                upper[d.ordinal()] = new double[crossing.length];
+            }
+            final double[] extent = new double[4];
+            int k = 0;
+            for (int q : crossing) {
+                // Rounding may let a query the parent found crossing only touch the voxel
+                if (clip(queries[q], voxel, extent)) {
+                    for (Dimension d : Dimension.values()) {
+                        lower[d.ordinal()][k] = extent[FACE_MIN_X + d.ordinal()];
+                        upper[d.ordinal()][k] = extent[FACE_MAX_X + d.ordinal()];
+                    }
+                    k++;
+                }
+            }
+            for (Dimension d : Dimension.values()) {
+                lower[d.ordinal()] = Arrays.copyOf(lower[d.ordinal()], k);
+                upper[d.ordinal()] = Arrays.copyOf(upper[d.ordinal()], k);
+                Arrays.sort(lower[d.ordinal()]);
+                Arrays.sort(upper[d.ordinal()]);
+            }
+        }
+    }
+
+    private static class Split {
+        public static final Split NONE = new Split(Double.MAX_VALUE, null, null);
+
+        // The split's cost by the surface area heuristic, Double.MAX_VALUE for median splits
+        public final double cost;
+        public final SplittingPlane plane;
+        public final SplittingPlaneAffiliation affiliation;
+
+        Split(double cost, SplittingPlane plane, SplittingPlaneAffiliation affiliation) {
+            this.cost = cost;
+            this.plane = plane;
+            this.affiliation = affiliation;
+        }
+    }
+
+    private static final byte SIDE_LEFT = 1;
+    private static final byte SIDE_RIGHT = 2;
+    private static final byte SIDE_BOTH = SIDE_LEFT | SIDE_RIGHT;
+
+    // Packed events keep their triangle's index above their EventType#ord
+    private static final int EVENT_TYPE_BITS = 2;
+    private static final int EVENT_TYPE = (1 << EVENT_TYPE_BITS) - 1;
+
+    /**
+     * The events of a voxel along one dimension in sweep order, as parallel arrays of their
+     * values and their packed triangles and types, see {@link #event(int, EventType)}.
+     */
+    private static class Events {
+        public final double[] values;
+        public final int[] events;
+
+        Events(double[] values, int[] events) {
+            this.values = values;
+            this.events = events;
+        }
+    }
+
     private static class TriangleEvent {
         public final Triangle t;
         public final SplittingPlane p;
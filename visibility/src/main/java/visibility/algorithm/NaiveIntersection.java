@@ -31,6 +31,16 @@ public class NaiveIntersection implements SpatialDataStructure {
         return min != null ? min.getIntersection() : null;
     }
 
+    @Override
+    public boolean isOccluded(Segment s) {
+        for (Triangle t : triangles) {
+            if (s.intersectsTriangle(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static NaiveIntersection fromTriangles(Iterable<Triangle> triangles) {
         return new NaiveIntersection(triangles);
     }
@@ -0,0 +1,476 @@
+package visibility.algorithm;
+
+import javafx.geometry.Point2D;
+import visibility.types.Segment;
+import visibility.types.SpatialDataStructure;
+import visibility.types.Triangle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link KDTree} copied to direct buffers outside of the Java heap, see {@link KDTree#toOffHeap()}.
+ * It keeps no references to the triangles it was built from, so once those and the heap tree
+ * are gone, the heap holds little more than this object, however large the map. Querying
+ * threads only need a traversal stack and a fixed-size mailbox, see {@link Mailbox}. The buffers
+ * are released when this tree is garbage collected.
+ * Only single segment queries are supported; batches fall back to the defaults.
+ * Trees too large to build in memory are built into a file by {@link ExternalBuild} and
+ * mapped into memory by {@link #load(Path)}.
+ */
+public class OffHeapKDTree implements SpatialDataStructure {
+    private static final ThreadLocal<TraversalStack> STACKS = ThreadLocal.withInitial(TraversalStack::new);
+    private static final ThreadLocal<Mailbox> MAILBOXES = ThreadLocal.withInitial(Mailbox::new);
+
+    // Slack for comparing intersection distances against the splitting planes' distances
+    private static final double T_EPSILON = 1e-9;
+
+    // Nodes are laid out in the order of KDTree's arrays, NODE_BYTES each: The split value,
+    // then the right child or, for leaves, the offset of their triangle references, then the
+    // node's kind: AXIS_X or AXIS_Y for inner nodes, the number of triangles for leaves.
+    private static final int NODE_BYTES = 16;
+    private static final int SPLIT_VALUE = 0;
+    private static final int CHILD = 8;
+    private static final int KIND = 12;
+    private static final int AXIS_X = -1;
+    private static final int AXIS_Y = -2;
+
+    // Files start with MAGIC and the numbers of nodes, triangles and triangle references,
+    // followed by the nodes, the references' triangle indices and their vertices, laid out
+    // like the buffers. Every section has to stay below 2 GB to be mapped.
+    private static final int MAGIC = 0x4b445431;
+
+    /**
+     * The most nodes a tree may have, since they are kept in one buffer, which holds at most
+     * {@link Integer#MAX_VALUE} bytes.
+     */
+    public static final int MAX_NODES = Integer.MAX_VALUE / NODE_BYTES;
+
+    /**
+     * The most triangle references a tree's leaves may have, since their vertices are kept
+     * in one buffer like the nodes.
+     */
+    public static final int MAX_REFERENCES = Integer.MAX_VALUE / (6 * 8);
+
+    private static final int HEADER_BYTES = 16;
+    private static final ByteOrder FILE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final ByteBuffer nodes;
+    // Triangle index of each triangle reference, and its vertices ax, ay, bx, by, cx, cy
+    private final IntBuffer leafTriangles;
+    private final DoubleBuffer leafVertices;
+    private final int nodeCount;
+
+    OffHeapKDTree(double[] splitValues, byte[] axes, byte leaf, int[] children, int[] leafSizes,
+                  int[] leafTriangles, Triangle[] triangles) {
+        if (axes.length > MAX_NODES || leafTriangles.length > MAX_REFERENCES) {
+            throw new IllegalArgumentException(tooLarge(axes.length, leafTriangles.length));
+        }
+        this.nodeCount = axes.length;
+        this.nodes = ByteBuffer.allocateDirect(NODE_BYTES * nodeCount).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.putDouble(NODE_BYTES * i + SPLIT_VALUE, splitValues[i]);
+            nodes.putInt(NODE_BYTES * i + CHILD, children[i]);
+            nodes.putInt(NODE_BYTES * i + KIND, axes[i] == leaf ? leafSizes[i] : axes[i] == KDTree.AXIS_X ? AXIS_X : AXIS_Y);
+        }
+
+        this.leafTriangles = ByteBuffer.allocateDirect(4 * leafTriangles.length)
+                .order(ByteOrder.nativeOrder()).asIntBuffer();
+        this.leafVertices = ByteBuffer.allocateDirect(6 * 8 * leafTriangles.length)
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        for (int r = 0; r < leafTriangles.length; r++) {
+            Triangle t = triangles[leafTriangles[r]];
+            this.leafTriangles.put(r, leafTriangles[r]);
+            this.leafVertices.put(6 * r, t.a.getX());
+            this.leafVertices.put(6 * r + 1, t.a.getY());
+            this.leafVertices.put(6 * r + 2, t.b.getX());
+            this.leafVertices.put(6 * r + 3, t.b.getY());
+            this.leafVertices.put(6 * r + 4, t.c.getX());
+            this.leafVertices.put(6 * r + 5, t.c.getY());
+        }
+    }
+
+    private OffHeapKDTree(ByteBuffer nodes, IntBuffer leafTriangles, DoubleBuffer leafVertices, int nodeCount) {
+        this.nodes = nodes;
+        this.leafTriangles = leafTriangles;
+        this.leafVertices = leafVertices;
+        this.nodeCount = nodeCount;
+    }
+
+    /**
+     * Maps a tree written by {@link ExternalBuild} into memory. The operating system pages
+     * it in as queries reach its parts.
+     * @throws IOException Also if the tree is too large to be mapped, see {@link #MAX_NODES}
+     * and {@link #MAX_REFERENCES}.
+     */
+    public static OffHeapKDTree load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(FILE_ORDER);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Not a tree file: " + file);
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a tree file: " + file);
+            }
+            final int nodeCount = header.getInt(4);
+            final int references = header.getInt(12);
+            if (nodeCount < 0 || references < 0) {
+                throw new IOException("Not a tree file: " + file);
+            }
+            if (nodeCount > MAX_NODES || references > MAX_REFERENCES) {
+                throw new IOException(tooLarge(nodeCount, references) + ": " + file);
+            }
+            final long nodesBytes = (long) NODE_BYTES * nodeCount;
+            final long referencesBytes = 4L * references;
+            if (channel.size() != HEADER_BYTES + nodesBytes + referencesBytes + 6 * 8L * references) {
+                throw new IOException("Truncated tree file: " + file);
+            }
+
+            // The mappings stay valid after the channel is closed
+            ByteBuffer nodes = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, nodesBytes)
+                    .order(FILE_ORDER);
+            IntBuffer leafTriangles = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + nodesBytes, referencesBytes)
+                    .order(FILE_ORDER).asIntBuffer();
+            DoubleBuffer leafVertices = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + nodesBytes + referencesBytes,
+                    6 * 8L * references).order(FILE_ORDER).asDoubleBuffer();
+            return new OffHeapKDTree(nodes, leafTriangles, leafVertices, nodeCount);
+        }
+    }
+
+    public static OffHeapKDTree fromTriangles(List<Triangle> triangles) {
+        return KDTree.fromTriangles(triangles).toOffHeap();
+    }
+
+    private static String tooLarge(long nodes, long references) {
+        return "A tree of " + nodes + " nodes and " + references + " triangle references can't be kept off heap, "
+                + "at most " + MAX_NODES + " nodes and " + MAX_REFERENCES + " references fit into its buffers";
+    }
+
+    /**
+     * Writes a tree to a file node by node in depth first order, see {@link #load(Path)}.
+     * Only the buffers of its sections are kept in memory.
+     */
+    static class Writer implements Closeable {
+        private static final int BUFFER_BYTES = 1 << 16;
+
+        private final Path file;
+        private final Path referencesFile;
+        private final Path verticesFile;
+        private final FileChannel nodes;
+        private final FileChannel references;
+        private final FileChannel vertices;
+        private final ByteBuffer nodeBuffer = ByteBuffer.allocate(BUFFER_BYTES).order(FILE_ORDER);
+        private final ByteBuffer referenceBuffer = ByteBuffer.allocate(BUFFER_BYTES).order(FILE_ORDER);
+        private final ByteBuffer vertexBuffer = ByteBuffer.allocate(BUFFER_BYTES).order(FILE_ORDER);
+        private int nodeCount;
+        private int referenceCount;
+
+        /**
+         * @param scratch Where to keep the sections until {@link #finish(int)} joins them
+         */
+        Writer(Path file, Path scratch) throws IOException {
+            this.file = file;
+            this.referencesFile = scratch.resolve("references");
+            this.verticesFile = scratch.resolve("vertices");
+            this.nodes = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.references = FileChannel.open(referencesFile, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.vertices = FileChannel.open(verticesFile, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // The header is written last, once the counts are known
+            nodes.position(HEADER_BYTES);
+        }
+
+        /**
+         * @return The index the next node gets.
+         */
+        int nodes() {
+            return nodeCount;
+        }
+
+        /**
+         * @param right The index of the right child, or anything if it is set later by {@link #setRight(int, int)}
+         */
+        void inner(boolean splitAtX, double splitValue, int right) throws IOException {
+            node(splitValue, right, splitAtX ? AXIS_X : AXIS_Y);
+        }
+
+        void setRight(int node, int right) throws IOException {
+            flush(nodeBuffer, nodes);
+            ByteBuffer child = ByteBuffer.allocate(4).order(FILE_ORDER).putInt(0, right);
+            while (child.hasRemaining()) {
+                nodes.write(child, HEADER_BYTES + (long) NODE_BYTES * node + CHILD + child.position());
+            }
+        }
+
+        /**
+         * Starts a leaf, whose references follow, see {@link #reference(int, Triangle)}.
+         */
+        void leaf(int size) throws IOException {
+            node(0, referenceCount, size);
+        }
+
+        void reference(int triangle, Triangle t) throws IOException {
+            if (referenceCount == MAX_REFERENCES) {
+                throw new IOException(tooLarge(nodeCount, referenceCount + 1L));
+            }
+            if (referenceBuffer.remaining() < 4) {
+                flush(referenceBuffer, references);
+            }
+            referenceBuffer.putInt(triangle);
+            if (vertexBuffer.remaining() < 6 * 8) {
+                flush(vertexBuffer, vertices);
+            }
+            vertexBuffer.putDouble(t.a.getX()).putDouble(t.a.getY())
+                    .putDouble(t.b.getX()).putDouble(t.b.getY())
+                    .putDouble(t.c.getX()).putDouble(t.c.getY());
+            referenceCount++;
+        }
+
+        private void node(double splitValue, int child, int kind) throws IOException {
+            if (nodeCount == MAX_NODES) {
+                throw new IOException(tooLarge(nodeCount + 1L, referenceCount));
+            }
+            if (nodeBuffer.remaining() < NODE_BYTES) {
+                flush(nodeBuffer, nodes);
+            }
+            final int offset = nodeBuffer.position();
+            nodeBuffer.putDouble(offset + SPLIT_VALUE, splitValue);
+            nodeBuffer.putInt(offset + CHILD, child);
+            nodeBuffer.putInt(offset + KIND, kind);
+            nodeBuffer.position(offset + NODE_BYTES);
+            nodeCount++;
+        }
+
+        /**
+         * Appends the sections to the nodes and writes the header.
+         * @param triangleCount The number of triangles the references index
+         */
+        void finish(int triangleCount) throws IOException {
+            flush(nodeBuffer, nodes);
+            flush(referenceBuffer, references);
+            flush(vertexBuffer, vertices);
+            for (FileChannel section : new FileChannel[]{references, vertices}) {
+                long position = 0;
+                while (position < section.size()) {
+                    position += section.transferTo(position, section.size() - position, nodes);
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(FILE_ORDER)
+                    .putInt(MAGIC).putInt(nodeCount).putInt(triangleCount).putInt(referenceCount);
+            header.flip();
+            while (header.hasRemaining()) {
+                nodes.write(header, header.position());
+            }
+            nodes.force(false);
+        }
+
+        private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                nodes.close();
+                references.close();
+                vertices.close();
+            } finally {
+                Files.deleteIfExists(referencesFile);
+                Files.deleteIfExists(verticesFile);
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes this tree occupies outside of the heap.
+     */
+    public long getOffHeapBytes() {
+        return nodes.capacity() + 4L * leafTriangles.capacity() + 8L * leafVertices.capacity();
+    }
+
+    @Override
+    public Point2D intersectWith(Segment s) {
+        if (nodeCount == 0) {
+            return null;
+        }
+
+        TraversalStack stack = STACKS.get();
+        stack.reset(s.length(), 0, false);
+        Mailbox mailbox = MAILBOXES.get();
+        mailbox.nextRay();
+        double t = nearestHit(s, stack, mailbox);
+        return t == Double.POSITIVE_INFINITY ? null : s.pointAtDistance(t);
+    }
+
+    @Override
+    public boolean isOccluded(Segment s) {
+        if (nodeCount == 0) {
+            return false;
+        }
+
+        TraversalStack stack = STACKS.get();
+        stack.reset(s.length(), 0, false);
+        Mailbox mailbox = MAILBOXES.get();
+        mailbox.nextRay();
+        return anyHit(s, stack, mailbox);
+    }
+
+    /**
+     * See KDTree#nearestHit.
+     */
+    private double nearestHit(Segment seg, TraversalStack stack, Mailbox mailbox) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+
+        double min = Double.POSITIVE_INFINITY;
+        int node = 0;
+
+        while (true) {
+            final int kind = nodes.getInt(NODE_BYTES * node + KIND);
+            if (kind < 0) {
+                node = descend(node, kind, sx, sy, dx, dy, stack);
+            } else {
+                final int begin = nodes.getInt(NODE_BYTES * node + CHILD);
+                for (int r = begin; r < begin + kind; r++) {
+                    final int i = leafTriangles.get(r);
+                    if (mailbox.testedBefore(i)) {
+                        continue;
+                    }
+                    final double t = seg.distanceToTriangle(
+                            leafVertices.get(6 * r), leafVertices.get(6 * r + 1),
+                            leafVertices.get(6 * r + 2), leafVertices.get(6 * r + 3),
+                            leafVertices.get(6 * r + 4), leafVertices.get(6 * r + 5));
+                    if (t < min) {
+                        min = t;
+                    }
+                }
+
+                if (min <= stack.tmax + T_EPSILON || stack.isEmpty()) {
+                    return min;
+                }
+                node = stack.pop();
+            }
+        }
+    }
+
+    /**
+     * See KDTree#anyHit.
+     */
+    private boolean anyHit(Segment seg, TraversalStack stack, Mailbox mailbox) {
+        final double sx = seg.getStart().getX();
+        final double sy = seg.getStart().getY();
+        final double dx = seg.getDirection().getX();
+        final double dy = seg.getDirection().getY();
+
+        int node = 0;
+
+        while (true) {
+            final int kind = nodes.getInt(NODE_BYTES * node + KIND);
+            if (kind < 0) {
+                node = descend(node, kind, sx, sy, dx, dy, stack);
+            } else {
+                final int begin = nodes.getInt(NODE_BYTES * node + CHILD);
+                for (int r = begin; r < begin + kind; r++) {
+                    final int i = leafTriangles.get(r);
+                    if (mailbox.testedBefore(i)) {
+                        continue;
+                    }
+                    if (seg.intersectsTriangle(
+                            leafVertices.get(6 * r), leafVertices.get(6 * r + 1),
+                            leafVertices.get(6 * r + 2), leafVertices.get(6 * r + 3),
+                            leafVertices.get(6 * r + 4), leafVertices.get(6 * r + 5))) {
+                        return true;
+                    }
+                }
+
+                if (stack.isEmpty()) {
+                    return false;
+                }
+                node = stack.pop();
+            }
+        }
+    }
+
+    /**
+     * See KDTree#descend.
+     */
+    private int descend(int node, int kind, double sx, double sy, double dx, double dy, TraversalStack stack) {
+        final boolean splitAtX = kind == AXIS_X;
+        final double s = splitAtX ? sx : sy;
+        final double d = splitAtX ? dx : dy;
+        final double splitValue = nodes.getDouble(NODE_BYTES * node + SPLIT_VALUE);
+        final int right = nodes.getInt(NODE_BYTES * node + CHILD);
+
+        if (d == 0) {
+            return s < splitValue ? node + 1 : right;
+        }
+
+        final int first = d > 0 ? node + 1 : right;
+        final int second = d > 0 ? right : node + 1;
+        final double t = (splitValue - s) / d;
+
+        if (t > stack.tmax) {
+            return first;
+        } else if (t < stack.tmin) {
+            return second;
+        } else {
+            stack.push(second, t, stack.tmax);
+            stack.tmax = t;
+            return first;
+        }
+    }
+
+    /**
+     * Mailboxing like {@link TraversalStack#mailbox}, but in a fixed number of slots hashed by
+     * triangle index, so that what a querying thread keeps on the heap doesn't grow with the map.
+     * Triangles sharing a slot evict each other, which only costs a repeated test.
+     */
+    private static class Mailbox {
+        private static final int SLOTS = 1024;
+
+        // The ray in the upper half of each slot, the triangle it tested last in the lower half
+        private final long[] slots = new long[SLOTS];
+        private int ray;
+
+        void nextRay() {
+            if (++ray == 0) {
+                // Wrapped around, so rays in the slots might clash with new ones
+                Arrays.fill(slots, 0);
+                ray = 1;
+            }
+        }
+
+        /**
+         * @return Whether the current ray tested triangle i before. Marks it tested.
+         */
+        boolean testedBefore(int i) {
+            final int slot = i & (SLOTS - 1);
+            final long key = (long) ray << 32 | i;
+            if (slots[slot] == key) {
+                return true;
+            }
+            slots[slot] = key;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package visibility.algorithm;
+
+import javafx.geometry.Point2D;
+import visibility.types.Segment;
+import visibility.types.SpatialDataStructure;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Answers large batches of queries on several cores. Batches are split recursively into
+ * chunks, which a {@link ForkJoinPool} distributes among its threads. The data structure must
+ * be safe to query from several threads, which {@link KDTree} and {@link NaiveIntersection} are.
+ * Every chunk of intersection queries goes to the data structure's batch variant, so that
+ * {@link KDTree} can trace it in packets. Results go into arrays the caller provides, each
+ * chunk's only allocations are copies of its part of the segments and results.
+ */
+public class ParallelQueries {
+    /**
+     * Batches up to this size are answered by one thread.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private final SpatialDataStructure dataStructure;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    private ParallelQueries(SpatialDataStructure dataStructure, ForkJoinPool pool, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive, got " + chunkSize);
+        }
+        this.dataStructure = dataStructure;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Runs queries on the common pool.
+     */
+    public static ParallelQueries of(SpatialDataStructure dataStructure) {
+        return new ParallelQueries(dataStructure, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public static ParallelQueries of(SpatialDataStructure dataStructure, ForkJoinPool pool, int chunkSize) {
+        return new ParallelQueries(dataStructure, pool, chunkSize);
+    }
+
+    /**
+     * Parallel variant of {@link SpatialDataStructure#intersectAll(Segment[])}.
+     * @param intersections Receives at index i the intersection point closest to
+     * segments[i]'s start, or null if there is none
+     */
+    public void intersectAll(Segment[] segments, Point2D[] intersections) {
+        checkLength(segments, intersections.length);
+        run(segments.length, (from, to) -> {
+            final Point2D[] chunk = dataStructure.intersectAll(Arrays.copyOfRange(segments, from, to));
+            System.arraycopy(chunk, 0, intersections, from, chunk.length);
+        });
+    }
+
+    /**
+     * Parallel variant of {@link SpatialDataStructure#intersectAll(Segment[], double[])}.
+     */
+    public void intersectAll(Segment[] segments, double[] distances) {
+        checkLength(segments, distances.length);
+        run(segments.length, (from, to) -> {
+            final double[] chunk = new double[to - from];
+            dataStructure.intersectAll(Arrays.copyOfRange(segments, from, to), chunk);
+            System.arraycopy(chunk, 0, distances, from, chunk.length);
+        });
+    }
+
+    /**
+     * Parallel variant of {@link SpatialDataStructure#isOccluded(Segment)}.
+     * @param occluded Receives at index i whether segments[i] intersects with the geometry
+     */
+    public void isOccluded(Segment[] segments, boolean[] occluded) {
+        checkLength(segments, occluded.length);
+        run(segments.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                occluded[i] = dataStructure.isOccluded(segments[i]);
+            }
+        });
+    }
+
+    private static void checkLength(Segment[] segments, int length) {
+        if (length < segments.length) {
+            throw new IllegalArgumentException("Output has room for " + length + " of " + segments.length + " segments");
+        }
+    }
+
+    private void run(int length, Chunk chunk) {
+        if (length <= chunkSize) {
+            chunk.query(0, length);
+        } else {
+            pool.invoke(new Split(chunk, chunkSize, 0, length));
+        }
+    }
+
+    /**
+     * Answers the queries at indices [from, to).
+     */
+    private interface Chunk {
+        void query(int from, int to);
+    }
+
+    private static class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Chunk chunk;
+        private final int chunkSize;
+        private final int from;
+        private final int to;
+
+        Split(Chunk chunk, int chunkSize, int from, int to) {
+            this.chunk = chunk;
+            this.chunkSize = chunkSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                chunk.query(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Split(chunk, chunkSize, from, mid), new Split(chunk, chunkSize, mid, to));
+            }
+        }
+    }
+}
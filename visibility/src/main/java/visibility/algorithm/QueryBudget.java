@@ -0,0 +1,97 @@
+package visibility.algorithm;
+
+import javafx.geometry.Point2D;
+import visibility.types.Segment;
+
+/**
+ * Limits the work of {@link KDTree#intersectWith(Segment, QueryBudget)}. Budgets are checked
+ * whenever the traversal reaches a leaf, so a query may overshoot by the work of one leaf.
+ * Queries reaching a subtree below a tree's lazy depth which isn't built yet give up right
+ * away and have it built in the background, see {@link BuildOptions#lazyDepth}. Only queries
+ * without any limit build it on the spot, like {@link KDTree#intersectWith(Segment)}.
+ */
+public class QueryBudget {
+    public static final QueryBudget UNLIMITED = new QueryBudget(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    /**
+     * The maximum number of nodes, inner nodes and leaves, a query may visit.
+     */
+    public final int maxNodes;
+
+    /**
+     * The maximum number of triangle intersection tests a query may do.
+     */
+    public final int maxTriangleTests;
+
+    /**
+     * The time in nanoseconds a query may take, see {@link System#nanoTime()}.
+     */
+    public final long timeLimit;
+
+    private QueryBudget(int maxNodes, int maxTriangleTests, long timeLimit) {
+        this.maxNodes = maxNodes;
+        this.maxTriangleTests = maxTriangleTests;
+        this.timeLimit = timeLimit;
+    }
+
+    public QueryBudget withMaxNodes(int maxNodes) {
+        return new QueryBudget(maxNodes, maxTriangleTests, timeLimit);
+    }
+
+    public QueryBudget withMaxTriangleTests(int maxTriangleTests) {
+        return new QueryBudget(maxNodes, maxTriangleTests, timeLimit);
+    }
+
+    public QueryBudget withTimeLimit(long timeLimit) {
+        return new QueryBudget(maxNodes, maxTriangleTests, timeLimit);
+    }
+
+    boolean hasTimeLimit() {
+        return timeLimit != Long.MAX_VALUE;
+    }
+
+    boolean isUnlimited() {
+        return maxNodes == Integer.MAX_VALUE && maxTriangleTests == Integer.MAX_VALUE && !hasTimeLimit();
+    }
+
+    /**
+     * The outcome of a query that may have run out of budget.
+     */
+    public static class Result {
+        public static final Result VISIBLE = new Result(Status.VISIBLE, null, true);
+        public static final Result UNKNOWN = new Result(Status.UNKNOWN, null, false);
+
+        public final Status status;
+
+        /**
+         * For {@link Status#BLOCKED}, an intersection with the segment, null otherwise.
+         */
+        public final Point2D intersection;
+
+        /**
+         * Whether the intersection is the one closest to the segment's start. Only false for
+         * queries which found an intersection, but ran out of budget before they could rule out
+         * nearer ones, and for {@link Status#UNKNOWN}.
+         */
+        public final boolean nearest;
+
+        Result(Status status, Point2D intersection, boolean nearest) {
+            this.status = status;
+            this.intersection = intersection;
+            this.nearest = nearest;
+        }
+
+        @Override
+        public String toString() {
+            return intersection == null
+                    ? status.toString()
+                    : status + (nearest ? " at " : " at least at ") + intersection;
+        }
+    }
+
+    public enum Status {
+        VISIBLE,
+        BLOCKED,
+        UNKNOWN
+    }
+}
@@ -0,0 +1,58 @@
+package visibility.algorithm;
+
+import java.util.Arrays;
+
+/**
+ * Remembers what a {@link KDTree} query found out, so the next query for a nearby segment,
+ * e.g. while dragging one of its ends, can start where this one ended: The triangle that
+ * blocked it and the leaves containing its start and end.
+ * A context must only be used by one thread at a time.
+ */
+public class QueryContext {
+    // The tree the hints below refer to
+    KDTree tree;
+
+    // The triangle that blocked the last query, or -1
+    int occluder = -1;
+
+    // The leaves containing the last segment's start and end, or -1, and their cells
+    int startLeaf = -1;
+    final double[] startCell = new double[4];
+    int endLeaf = -1;
+    final double[] endCell = new double[4];
+
+    public QueryContext() {
+        reset();
+    }
+
+    /**
+     * Forgets everything learned from previous queries.
+     */
+    public void reset() {
+        tree = null;
+        occluder = -1;
+        startLeaf = -1;
+        endLeaf = -1;
+        Arrays.fill(startCell, Double.NaN);
+        Arrays.fill(endCell, Double.NaN);
+    }
+
+    /**
+     * Resets the context if it was last used with another tree.
+     */
+    void bind(KDTree tree) {
+        if (this.tree != tree) {
+            reset();
+            this.tree = tree;
+        }
+    }
+
+    /**
+     * @param cell Bounds indexed by KDTree.FACE_*
+     * @return Whether (x, y) lies within the cell, false if the cell is unknown
+     */
+    static boolean contains(double[] cell, double x, double y) {
+        return x >= cell[KDTree.FACE_MIN_X] && x <= cell[KDTree.FACE_MAX_X]
+                && y >= cell[KDTree.FACE_MIN_Y] && y <= cell[KDTree.FACE_MAX_Y];
+    }
+}
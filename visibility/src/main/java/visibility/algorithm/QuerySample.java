@@ -0,0 +1,67 @@
+package visibility.algorithm;
+
+import visibility.types.Segment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A uniform sample of the segments queried, to rebuild a tree for where the queries actually go,
+ * see {@link KDTree#setQuerySample(QuerySample)} and {@link KDTree#rebuildFor(List)}.
+ * Keeps up to a fixed number of segments however many are recorded (reservoir sampling).
+ * Safe to share between threads.
+ */
+public class QuerySample {
+    private final Segment[] segments;
+    private final Random random;
+    private long recorded;
+
+    public QuerySample(int capacity) {
+        this(capacity, new Random());
+    }
+
+    /**
+     * @param random Decides which segments to keep, seed it to make the sample reproducible
+     */
+    public QuerySample(int capacity, Random random) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity must be positive");
+        }
+        this.segments = new Segment[capacity];
+        this.random = random;
+    }
+
+    public synchronized void record(Segment s) {
+        if (recorded < segments.length) {
+            segments[(int) recorded] = s;
+        } else {
+            // Keep the segment with probability capacity / (recorded + 1), replacing a random one
+            final long i = (long) (random.nextDouble() * (recorded + 1));
+            if (i < segments.length) {
+                segments[(int) i] = s;
+            }
+        }
+        recorded++;
+    }
+
+    /**
+     * @return The number of segments recorded so far, kept or not.
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * @return A copy of the segments kept.
+     */
+    public synchronized List<Segment> getSegments() {
+        return new ArrayList<>(Arrays.asList(segments).subList(0, (int) Math.min(recorded, segments.length)));
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(segments, null);
+        recorded = 0;
+    }
+}
@@ -0,0 +1,92 @@
+package visibility.algorithm;
+
+import java.util.Arrays;
+
+/**
+ * Reusable stack of (node, tmin, tmax) entries, along with the interval of the node
+ * currently visited. Trees keep one per thread in their STACKS.
+ */
+class TraversalStack {
+    public double tmin;
+    public double tmax;
+    private int[] nodes = new int[64];
+    private double[] tmins = new double[64];
+    private double[] tmaxs = new double[64];
+    private int size;
+
+    // Mailboxing: mailbox[i] == ray iff the current query already tested the triangle
+    // with index i. Every query gets a new ray id, which is only unique within this
+    // thread, so that's where the mailbox lives instead of in the (shared) tree.
+    // Since ids are never reused, the same mailbox can serve different trees.
+    public int[] mailbox = new int[0];
+    public int ray;
+
+    // Triangle tests done and skipped by the current query
+    public int tests;
+    public int skipped;
+
+    // The triangle of the nearest (or for any-hit queries, the first) intersection found
+    public int nearest;
+
+    // Whether the current query ran out of budget
+    public boolean exhausted;
+
+    // What the current query did, for TraversalStatistics
+    public int innerNodes;
+    public int leaves;
+    public int hitLeaf;
+    public long begin;
+
+    /**
+     * Starts a new query over the interval [0, tmax] in a tree with the given number of triangles.
+     * @param timed Whether to take the query's start time
+     */
+    public void reset(double tmax, int triangles, boolean timed) {
+        this.tmin = 0;
+        this.tmax = tmax;
+        this.size = 0;
+        this.tests = 0;
+        this.skipped = 0;
+        this.nearest = -1;
+        this.exhausted = false;
+        this.innerNodes = 0;
+        this.leaves = 0;
+        this.hitLeaf = -1;
+        this.begin = timed ? System.nanoTime() : 0;
+        if (mailbox.length < triangles) {
+            mailbox = new int[triangles];
+        }
+        if (++ray == 0) {
+            // Wrapped around, so ids in the mailbox might clash with new ones
+            Arrays.fill(mailbox, 0);
+            ray = 1;
+        }
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void push(int node, double tmin, double tmax) {
+        if (size == nodes.length) {
+            nodes = Arrays.copyOf(nodes, size * 2);
+            tmins = Arrays.copyOf(tmins, size * 2);
+            tmaxs = Arrays.copyOf(tmaxs, size * 2);
+        }
+        nodes[size] = node;
+        tmins[size] = tmin;
+        tmaxs[size] = tmax;
+        size++;
+    }
+
+    /**
+     * Pops the top entry and makes its interval the current one.
+     * @return The node of the popped entry
+     */
+    public int pop() {
+        size--;
+        tmin = tmins[size];
+        tmax = tmaxs[size];
+        return nodes[size];
+    }
+}
@@ -0,0 +1,150 @@
+package visibility.algorithm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects what {@link KDTree} queries do, to tune the tree's cost model against, see
+ * {@link KDTree#setStatistics(TraversalStatistics)}. Safe to share between threads.
+ */
+public class TraversalStatistics {
+    /**
+     * Inner nodes and leaves visited per query
+     */
+    public final Histogram nodes = new Histogram();
+    public final Histogram leaves = new Histogram();
+    public final Histogram triangleTests = new Histogram();
+    /**
+     * Triangle tests skipped per query, because the triangle was tested in an earlier leaf
+     */
+    public final Histogram duplicateTests = new Histogram();
+    /**
+     * Depth of the leaf in which queries found their intersection. Queries without one
+     * don't count, and neither do those answered by a {@link QueryContext}'s occluder.
+     */
+    public final Histogram hitDepth = new Histogram();
+    /**
+     * Wall time per query in nanoseconds
+     */
+    public final Histogram time = new Histogram();
+
+    /**
+     * @param hitDepth -1 if unknown or there is no hit
+     * @param time -1 if unknown
+     */
+    void record(int nodes, int leaves, int triangleTests, int duplicateTests, int hitDepth, long time) {
+        this.nodes.record(nodes);
+        this.leaves.record(leaves);
+        this.triangleTests.record(triangleTests);
+        this.duplicateTests.record(duplicateTests);
+        if (hitDepth >= 0) {
+            this.hitDepth.record(hitDepth);
+        }
+        if (time >= 0) {
+            this.time.record(time);
+        }
+    }
+
+    public void reset() {
+        nodes.reset();
+        leaves.reset();
+        triangleTests.reset();
+        duplicateTests.reset();
+        hitDepth.reset();
+        time.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "nodes: " + nodes + "\n" +
+                "leaves: " + leaves + "\n" +
+                "triangle tests: " + triangleTests + "\n" +
+                "duplicate tests: " + duplicateTests + "\n" +
+                "hit depth: " + hitDepth + "\n" +
+                "time (ns): " + time;
+    }
+
+    /**
+     * Counts non-negative values in buckets of powers of two: Bucket 0 holds 0,
+     * bucket i > 0 holds [2^(i-1), 2^i).
+     */
+    public static class Histogram {
+        public static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long value) {
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public static int bucket(long value) {
+            return 64 - Long.numberOfLeadingZeros(value);
+        }
+
+        /**
+         * @return The smallest value in bucket
+         */
+        public static long lowerBound(int bucket) {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+
+        public long getBucket(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : getSum() / (double) count;
+        }
+
+        /**
+         * @param p In [0, 1]
+         * @return The lower bound of the bucket holding the p-quantile
+         */
+        public long getQuantile(double p) {
+            long rank = (long) Math.ceil(p * getCount());
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return lowerBound(i);
+                }
+            }
+            return 0;
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+            max.reset();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d, mean %.2f, p50 >= %d, p99 >= %d, max %d",
+                    getCount(), getMean(), getQuantile(0.5), getQuantile(0.99), getMax());
+        }
+    }
+}
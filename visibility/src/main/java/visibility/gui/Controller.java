@@ -13,10 +13,11 @@ import javafx.scene.shape.ArcType;
 import javafx.stage.FileChooser;
 import org.jooq.lambda.Seq;
 import org.jooq.lambda.tuple.Tuple2;
+import visibility.algorithm.BuildOptions;
 import visibility.algorithm.KDTree;
+import visibility.algorithm.QueryContext;
 import visibility.types.GeometryParser;
 import visibility.types.Segment;
-import visibility.types.SpatialDataStructure;
 import visibility.types.Triangle;
 
 import java.io.File;
@@ -29,13 +30,18 @@ import java.util.List;
 import static org.jooq.lambda.tuple.Tuple.tuple;
 
 public class Controller {
+    // Only the top of the tree is built when loading a map, the rest as the ghosts look around
+    private static final int LAZY_DEPTH = 8;
+
     public Canvas canvas;
     private Viewport viewport;
     private GeometryParser parser;
     private List<Triangle> geometry = Collections.emptyList();
-    private SpatialDataStructure dataStructure;
+    private KDTree dataStructure;
     private Point2D pacman;
     private final List<Point2D> ghosts = new ArrayList<>();
+    // One per ghost, so dragging Pacman around re-uses what the last query found
+    private final List<QueryContext> contexts = new ArrayList<>();
     private final List<Tuple2<Segment, Color>> rays = new ArrayList<>();
     private WritableImage snapshot;
 
@@ -62,7 +68,7 @@ public class Controller {
         File selectedFile = chooser.showOpenDialog(canvas.getScene().getWindow());
         if (selectedFile != null) {
             geometry = parser.parseFile(new FileInputStream(selectedFile));
-            dataStructure = KDTree.fromTriangles(geometry);
+            dataStructure = KDTree.fromTriangles(geometry, BuildOptions.DEFAULT.withLazyDepth(LAZY_DEPTH));
             snapshot = null;
             setViewport(Viewport.fromTriangles(geometry));
             pacman = null;
@@ -72,6 +78,7 @@ public class Controller {
 
     public void clear(ActionEvent actionEvent) {
         ghosts.clear();
+        contexts.clear();
         rays.clear();
         snapshot = null;
         draw(canvas.getGraphicsContext2D());
@@ -91,6 +98,7 @@ public class Controller {
             case SECONDARY:
                 // Place an additional ghost
                 ghosts.add(p);
+                contexts.add(new QueryContext());
                 break;
             default:
                 return;
@@ -99,12 +107,12 @@ public class Controller {
         // Now recalculate all visibility checks
         rays.clear();
         if (pacman != null) {
-            rays.addAll(Seq.seq(ghosts).map(g -> {
-                Segment ray = new Segment(g, pacman);
-                Point2D intersection = dataStructure.intersectWith(new Segment(g, pacman));
+            rays.addAll(Seq.seq(ghosts).zip(contexts).map(t -> {
+                Segment ray = new Segment(t.v1, pacman);
+                Point2D intersection = dataStructure.intersectWith(ray, t.v2);
                 return intersection == null
                         ? tuple(ray, Color.GREEN)
-                        : tuple(new Segment(g, intersection), Color.RED);
+                        : tuple(new Segment(t.v1, intersection), Color.RED);
             }).toList());
         }
 
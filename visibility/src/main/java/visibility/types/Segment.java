@@ -9,6 +9,11 @@ import static org.jooq.lambda.tuple.Tuple.tuple;
 
 public class Segment {
 
+    /**
+     * The number of triangles {@link #linePassesTriangles} tests at once.
+     */
+    public static final int PACK_SIZE = 8;
+
     private final Point2D start;
     private final Point2D end;
     private final double distanceSquared;
@@ -49,6 +54,23 @@ public class Segment {
         return end;
     }
 
+    /**
+     * @return The normalized direction from start to end.
+     */
+    @NotNull
+    public final Point2D getDirection() {
+        return dir;
+    }
+
+    public final double length() {
+        return Math.sqrt(distanceSquared);
+    }
+
+    @NotNull
+    public final Point2D pointAtDistance(double distance) {
+        return start.add(dir.multiply(distance));
+    }
+
     @NotNull
     public final Tuple3<Boolean, Segment, Segment> splitAtXorY(boolean splitAtX, double splitValue) {
         Point2D s = this.start;
@@ -128,6 +150,184 @@ public class Segment {
         }
     }
 
+    /**
+     * Checks whether the segment intersects the triangle without computing where.
+     */
+    public final boolean intersectsTriangle(@NotNull Triangle t) {
+        return intersectsTriangle(t.a.getX(), t.a.getY(), t.b.getX(), t.b.getY(), t.c.getX(), t.c.getY());
+    }
+
+    /**
+     * Checks whether the segment intersects the triangle (a, b, c) without computing where.
+     * This is a separating axis test: Segment and triangle are disjoint iff either the
+     * triangle lies on one side of the segment's line or the segment lies outside of the
+     * slab spanned by one of the triangle's edges and the opposite vertex.
+     */
+    public final boolean intersectsTriangle(double ax, double ay, double bx, double by, double cx, double cy) {
+        final double sx = start.getX();
+        final double sy = start.getY();
+        final double ox = orth.getX(), oy = orth.getY();
+        final double oa = (ax - sx) * ox + (ay - sy) * oy;
+        final double ob = (bx - sx) * ox + (by - sy) * oy;
+        final double oc = (cx - sx) * ox + (cy - sy) * oy;
+
+        if (oa * ob > 0 && ob * oc > 0 && oc * oa > 0) {
+            return false;
+        }
+
+        final double ex = end.getX();
+        final double ey = end.getY();
+        return !separatedByEdge(ax, ay, bx, by, cx, cy, sx, sy, ex, ey)
+                && !separatedByEdge(bx, by, cx, cy, ax, ay, sx, sy, ex, ey)
+                && !separatedByEdge(cx, cy, ax, ay, bx, by, sx, sy, ex, ey);
+    }
+
+    private static boolean separatedByEdge(double ax, double ay, double bx, double by, double cx, double cy,
+                                           double sx, double sy, double ex, double ey) {
+        // Project onto the normal of edge ab, scaled so that the triangle covers [0, h]
+        final double nx = ay - by;
+        final double ny = bx - ax;
+        final double h = (cx - ax) * nx + (cy - ay) * ny;
+        final double sign = h < 0 ? -1 : 1;
+        final double ps = sign * ((sx - ax) * nx + (sy - ay) * ny);
+        final double pe = sign * ((ex - ax) * nx + (ey - ay) * ny);
+        return (ps < 0 && pe < 0) || (ps > sign * h && pe > sign * h);
+    }
+
+    /**
+     * Checks for a pack of up to {@link #PACK_SIZE} triangles, given as structure of arrays,
+     * whether the segment's line passes through them. This is the first test of
+     * {@link #distanceToTriangle} and {@link #intersectsTriangle}, done for all triangles of
+     * the pack at once, so that only the candidates need to be tested individually.
+     * @param from Index of the pack's first triangle
+     * @param to Index after the last triangle, at most from + PACK_SIZE
+     * @return Mask where bit i is set iff the line passes through triangle from + i.
+     */
+    public final int linePassesTriangles(double[] ax, double[] ay, double[] bx, double[] by, double[] cx, double[] cy,
+                                         int from, int to) {
+        return linePassesTriangles(TrianglePackKernel.DEFAULT, ax, ay, bx, by, cx, cy, from, to);
+    }
+
+    /**
+     * Variant of {@link #linePassesTriangles(double[], double[], double[], double[], double[], double[], int, int)}
+     * using the given kernel rather than {@link TrianglePackKernel#DEFAULT}.
+     */
+    public final int linePassesTriangles(TrianglePackKernel kernel,
+                                         double[] ax, double[] ay, double[] bx, double[] by, double[] cx, double[] cy,
+                                         int from, int to) {
+        assert to - from <= PACK_SIZE;
+        return kernel.linePassesTriangles(start.getX(), start.getY(), orth.getX(), orth.getY(),
+                ax, ay, bx, by, cx, cy, from, to);
+    }
+
+    /**
+     * Variant of {@link #linePassesTriangles(double[], double[], double[], double[], double[], double[], int, int)}
+     * for vertices given as floats relative to (originX, originY), which may each be off by up to
+     * slack / 2 in either coordinate. Errs on the side of passing: Bit i is also set if the line
+     * misses triangle from + i by less than slack.
+     */
+    public final int linePassesTriangles(float[] ax, float[] ay, float[] bx, float[] by, float[] cx, float[] cy,
+                                         double originX, double originY, double slack, int from, int to) {
+        assert to - from <= PACK_SIZE;
+        final double sx = start.getX() - originX;
+        final double sy = start.getY() - originY;
+        final double ox = orth.getX(), oy = orth.getY();
+        int mask = 0;
+        for (int i = from; i < to; i++) {
+            final double oa = (ax[i] - sx) * ox + (ay[i] - sy) * oy;
+            final double ob = (bx[i] - sx) * ox + (by[i] - sy) * oy;
+            final double oc = (cx[i] - sx) * ox + (cy[i] - sy) * oy;
+            final boolean passes = !(oa > slack & ob > slack & oc > slack) & !(oa < -slack & ob < -slack & oc < -slack);
+            mask |= (passes ? 1 : 0) << (i - from);
+        }
+        return mask;
+    }
+
+    /**
+     * Structure of arrays variant of {@link #distanceToTriangle}, which tests the triangles
+     * from to to - 1 pack-wise through {@link #linePassesTriangles}.
+     * @return The distance of the intersection closest to the segment's start,
+     * or {@link Double#POSITIVE_INFINITY} if there is none.
+     */
+    public final double distanceToTriangles(double[] ax, double[] ay, double[] bx, double[] by, double[] cx, double[] cy,
+                                            int from, int to) {
+        double min = Double.POSITIVE_INFINITY;
+        for (int pack = from; pack < to; pack += PACK_SIZE) {
+            int mask = linePassesTriangles(ax, ay, bx, by, cx, cy, pack, Math.min(to, pack + PACK_SIZE));
+            while (mask != 0) {
+                final int i = pack + Integer.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+                final double t = distanceToTriangle(ax[i], ay[i], bx[i], by[i], cx[i], cy[i]);
+                if (t < min) {
+                    min = t;
+                }
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Allocation-free variant of {@link #intersectTriangle(Triangle)} for the triangle (a, b, c).
+     * @return The distance of the intersection closest to the segment's start,
+     * or {@link Double#POSITIVE_INFINITY} if there is none.
+     */
+    public final double distanceToTriangle(double ax, double ay, double bx, double by, double cx, double cy) {
+        final double sx = start.getX();
+        final double sy = start.getY();
+        final double rax = ax - sx, ray = ay - sy;
+        final double rbx = bx - sx, rby = by - sy;
+        final double rcx = cx - sx, rcy = cy - sy;
+
+        final double ox = orth.getX(), oy = orth.getY();
+        final double oa = rax * ox + ray * oy;
+        final double ob = rbx * ox + rby * oy;
+        final double oc = rcx * ox + rcy * oy;
+
+        final boolean ab = oa * ob <= 0;
+        final boolean bc = ob * oc <= 0;
+        final boolean ca = oc * oa <= 0;
+
+        if (!ab && !bc && !ca) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // Same as Triangle.isInside(start), in terms of the relative coordinates
+        final double v0x = bx - ax, v0y = by - ay;
+        final double v1x = cx - ax, v1y = cy - ay;
+        final double denom = v0x * v1y - v1x * v0y;
+        final double u = (-rax * v1y + v1x * ray) / denom;
+        final double v = (-v0x * ray + rax * v0y) / denom;
+        if (u >= 0 && v >= 0 && 1.0 - u - v >= 0) {
+            return 0;
+        }
+
+        final double dx = dir.getX(), dy = dir.getY();
+        final double da = rax * dx + ray * dy;
+        final double db = rbx * dx + rby * dy;
+        final double dc = rcx * dx + rcy * dy;
+
+        if (ab) {
+            if (bc) {
+                return distanceToNearestEdge(oa, ob, oc, da, db, dc);
+            } else if (ca) {
+                return distanceToNearestEdge(oc, oa, ob, dc, da, db);
+            }
+        } else if (bc && ca) {
+            return distanceToNearestEdge(ob, oc, oa, db, dc, da);
+        }
+        exactlyOneIntersectionIsImpossible();
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private double distanceToNearestEdge(double oa, double ob, double oc, double da, double db, double dc) {
+        // See intersectionWithNearestEdge
+        double ab = distanceOfIntersection(oa, da, ob, db);
+        double bc = distanceOfIntersection(ob, db, oc, dc);
+        double distance = ab < bc ? ab : bc;
+
+        return distance >= 0 && distance*distance <= this.distanceSquared ? distance : Double.POSITIVE_INFINITY;
+    }
+
     private Intersection intersectionWithNearestEdge(double oa, double ob, double oc, double da, double db, double dc) {
         // The code assumes that ab and bc are the intersected edges.
         // *b will the point shared by both intersected edges.
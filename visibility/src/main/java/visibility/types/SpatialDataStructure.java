@@ -10,4 +10,41 @@ public interface SpatialDataStructure {
      * with the geometry, or null if there is no intersection.
      */
     Point2D intersectWith(Segment s);
+
+    /**
+     * Checks whether the segment intersects with the geometry at all. Other than
+     * {@link #intersectWith(Segment)}, this may stop at the first intersection found.
+     * @param s The segment
+     * @return True if there is an intersection.
+     */
+    default boolean isOccluded(Segment s) {
+        return intersectWith(s) != null;
+    }
+
+    /**
+     * Batch variant of {@link #intersectWith(Segment)}.
+     * @param segments The segments
+     * @return The intersection point closest to segments[i]'s start at index i,
+     * or null if there is no intersection.
+     */
+    default Point2D[] intersectAll(Segment[] segments) {
+        Point2D[] hits = new Point2D[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            hits[i] = intersectWith(segments[i]);
+        }
+        return hits;
+    }
+
+    /**
+     * Batch variant of {@link #intersectWith(Segment)} which reports distances instead of points.
+     * @param segments The segments
+     * @param distances Receives at index i the distance from segments[i]'s start to the
+     * intersection point closest to it, or {@link Double#POSITIVE_INFINITY} if there is none.
+     */
+    default void intersectAll(Segment[] segments, double[] distances) {
+        for (int i = 0; i < segments.length; i++) {
+            Point2D p = intersectWith(segments[i]);
+            distances[i] = p == null ? Double.POSITIVE_INFINITY : segments[i].getStart().distance(p);
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package visibility.types;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tests a pack of triangles, given as structure of arrays, against a line, see
+ * {@link Segment#linePassesTriangles(double[], double[], double[], double[], double[], double[], int, int)}.
+ * The scalar kernel is always available, the {@link #VECTORIZED} one only where the incubating
+ * JDK Vector API is: It is compiled separately from src/vector/java and loaded reflectively.
+ */
+public abstract class TrianglePackKernel {
+
+    /**
+     * Tests the triangles one after another.
+     */
+    public static final TrianglePackKernel SCALAR = new TrianglePackKernel() {
+        @Override
+        public int linePassesTriangles(double sx, double sy, double ox, double oy,
+                                       double[] ax, double[] ay, double[] bx, double[] by, double[] cx, double[] cy,
+                                       int from, int to) {
+            int mask = 0;
+            for (int i = from; i < to; i++) {
+                final double oa = (ax[i] - sx) * ox + (ay[i] - sy) * oy;
+                final double ob = (bx[i] - sx) * ox + (by[i] - sy) * oy;
+                final double oc = (cx[i] - sx) * ox + (cy[i] - sy) * oy;
+                final boolean passes = oa * ob <= 0 | ob * oc <= 0 | oc * oa <= 0;
+                mask |= (passes ? 1 : 0) << (i - from);
+            }
+            return mask;
+        }
+    };
+
+    /**
+     * Tests as many triangles per instruction as the platform's preferred vector shape holds doubles,
+     * or null if the Vector API is missing. Its results are the same as {@link #SCALAR}'s.
+     */
+    @Nullable
+    public static final TrianglePackKernel VECTORIZED = loadVectorized();
+
+    /**
+     * The kernel {@link Segment} uses.
+     */
+    public static final TrianglePackKernel DEFAULT = VECTORIZED != null ? VECTORIZED : SCALAR;
+
+    @Nullable
+    private static TrianglePackKernel loadVectorized() {
+        try {
+            return (TrianglePackKernel) Class.forName("visibility.types.VectorTrianglePackKernel")
+                    .getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled on this JDK, or jdk.incubator.vector was not added to the module graph
+            return null;
+        }
+    }
+
+    /**
+     * @param sx X coordinate of a point on the line
+     * @param sy Y coordinate of a point on the line
+     * @param ox X coordinate of the line's unit normal
+     * @param oy Y coordinate of the line's unit normal
+     * @param from Index of the pack's first triangle
+     * @param to Index after the last triangle, at most from + {@link Segment#PACK_SIZE}
+     * @return Mask where bit i is set iff the line passes through triangle from + i.
+     */
+    public abstract int linePassesTriangles(double sx, double sy, double ox, double oy,
+                                            double[] ax, double[] ay, double[] bx, double[] by, double[] cx, double[] cy,
+                                            int from, int to);
+}
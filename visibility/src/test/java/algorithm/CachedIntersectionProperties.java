@@ -0,0 +1,111 @@
+package algorithm;
+
+import com.pholser.junit.quickcheck.Property;
+import com.pholser.junit.quickcheck.generator.InRange;
+import com.pholser.junit.quickcheck.runner.JUnitQuickcheck;
+import javafx.geometry.Point2D;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import visibility.algorithm.CachedIntersection;
+import visibility.algorithm.KDTree;
+import visibility.algorithm.NaiveIntersection;
+import visibility.osm.OSMGeometryParser;
+import visibility.types.GeometryParser;
+import visibility.types.Segment;
+import visibility.types.Triangle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnitQuickcheck.class)
+public class CachedIntersectionProperties {
+
+    private static List<Triangle> triangles;
+    private static KDTree kdTree;
+    private static NaiveIntersection naive;
+
+    @BeforeClass
+    public static void setUp() {
+        try (InputStream file = new GZIPInputStream(CachedIntersectionProperties.class.getResourceAsStream("/karlsruhe.osm.gz"))) {
+            GeometryParser parser = new OSMGeometryParser();
+            triangles = parser.parseFile(file);
+            kdTree = KDTree.fromTriangles(triangles);
+            naive = NaiveIntersection.fromTriangles(triangles);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Cached or not, the result is that of the quantized segment.
+     */
+    @Property(trials = 10000)
+    public void sameOutputAsQuantizedSegment(
+            @InRange(min="8604.9", max = "8630.5") double sx,
+            @InRange(min="50181.6", max="50193") double sy,
+            @InRange(min="8604.9", max = "8630.5") double ex,
+            @InRange(min="50181.6", max="50193") double ey) {
+        CachedIntersection cached = CachedIntersection.wrap(kdTree, 0.5, 16);
+        Segment s = new Segment(new Point2D(sx, sy), new Point2D(ex, ey));
+        Segment q = cached.quantize(s);
+
+        Point2D expected = naive.intersectWith(q);
+
+        for (int i = 0; i < 2; i++) {
+            Point2D actual = cached.intersectWith(s);
+
+            assertTrue((expected != null) == (actual != null));
+            assertEquals(expected != null, cached.isOccluded(s));
+
+            if (expected != null) {
+                assertEquals(expected.getX(), actual.getX(), 10e-7);
+                assertEquals(expected.getY(), actual.getY(), 10e-7);
+            }
+        }
+    }
+
+    @Test
+    public void occlusionResultsAreMissesForIntersections() {
+        CachedIntersection cached = CachedIntersection.wrap(naive, 0.5, 16);
+        Segment s = new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193));
+
+        cached.isOccluded(s);
+        assertEquals(0, cached.getHits());
+        assertEquals(1, cached.getMisses());
+
+        // Doesn't tell the nearest intersection
+        cached.intersectWith(s);
+        assertEquals(0, cached.getHits());
+        assertEquals(2, cached.getMisses());
+
+        cached.intersectWith(s);
+        cached.isOccluded(s);
+        assertEquals(2, cached.getHits());
+        assertEquals(2, cached.getMisses());
+    }
+
+    @Test
+    public void staysWithinCapacity() {
+        CachedIntersection cached = CachedIntersection.wrap(naive, 1, 100);
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            Segment s = new Segment(start, end);
+            cached.intersectWith(s);
+            cached.intersectWith(s);
+            assertTrue(cached.size() <= cached.capacity());
+        }
+
+        assertTrue(cached.getHits() > 0);
+        assertTrue(cached.getMisses() > 0);
+        assertEquals(cached.getMisses() - cached.capacity(), cached.getEvictions());
+    }
+}
@@ -5,34 +5,96 @@ import com.pholser.junit.quickcheck.generator.InRange;
 import com.pholser.junit.quickcheck.runner.JUnitQuickcheck;
 import javafx.geometry.Point2D;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.junit.runner.RunWith;
+import visibility.algorithm.AsyncQueries;
+import visibility.algorithm.BuildOptions;
+import visibility.algorithm.BuildReport;
+import visibility.algorithm.CostModel;
+import visibility.algorithm.ExternalBuild;
 import visibility.algorithm.KDTree;
 import visibility.algorithm.NaiveIntersection;
+import visibility.algorithm.OffHeapKDTree;
+import visibility.algorithm.ParallelQueries;
+import visibility.algorithm.QueryBudget;
+import visibility.algorithm.QueryContext;
+import visibility.algorithm.QuerySample;
+import visibility.algorithm.TraversalStatistics;
 import visibility.osm.OSMGeometryParser;
 import visibility.types.GeometryParser;
 import visibility.types.Segment;
+import visibility.types.SpatialDataStructure;
 import visibility.types.Triangle;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnitQuickcheck.class)
 public class KDTreeProperties {
 
+    private static List<Triangle> triangles;
     private static KDTree kdTree;
+    private static KDTree kdTreeWithRopes;
+    private static KDTree kdTreeCompact;
+    private static KDTree kdTreeEmptySpace;
+    private static KDTree kdTreePerfectSplits;
+    private static KDTree kdTreeLazy;
+    private static OffHeapKDTree kdTreeOffHeap;
+    private static List<KDTree> kdTreesByStrategy;
     private static NaiveIntersection naive;
 
     @BeforeClass
     public static void setUp() {
         try (InputStream file = new GZIPInputStream(KDTreeProperties.class.getResourceAsStream("/karlsruhe.osm.gz"))) {
             GeometryParser parser = new OSMGeometryParser();
-            List<Triangle> triangles = parser.parseFile(file);
+            triangles = parser.parseFile(file);
             kdTree = KDTree.fromTriangles(triangles);
+            kdTreeWithRopes = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withRopes(true));
+            kdTreeCompact = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withCompactGeometry(true));
+            kdTreeOffHeap = kdTree.toOffHeap();
+            kdTreePerfectSplits = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withPerfectSplits(true));
+            kdTreeLazy = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withRopes(true).withLazyDepth(6));
+            kdTreeEmptySpace = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT
+                    .withRopes(true)
+                    .withCostModel(CostModel.DEFAULT.withTraversalCost(0.5).withEmptySpaceBonus(0.8)));
+            kdTreesByStrategy = new ArrayList<>();
+            for (BuildOptions.Strategy strategy : BuildOptions.Strategy.values()) {
+                kdTreesByStrategy.add(KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withStrategy(strategy)));
+                kdTreesByStrategy.add(KDTree.fromTriangles(triangles, BuildOptions.DEFAULT
+                        .withStrategy(strategy)
+                        .withCompactGeometry(true)
+                        .withRopes(true)));
+            }
+            kdTreesByStrategy.add(KDTree.fromTriangles(triangles, BuildOptions.DEFAULT
+                    .withCompactGeometry(true)
+                    .withPerfectSplits(true)
+                    .withLazyDepth(6)));
             naive = NaiveIntersection.fromTriangles(triangles);
         } catch (IOException e) {
             e.printStackTrace();
@@ -51,14 +113,634 @@ public class KDTreeProperties {
         Segment s = new Segment(new Point2D(sx, sy), new Point2D(ex, ey));
 
         Point2D expected = naive.intersectWith(s);
-        Point2D actual = kdTree.intersectWith(s);
 
+        for (SpatialDataStructure tree : new SpatialDataStructure[]{kdTree, kdTreeWithRopes, kdTreeCompact, kdTreeOffHeap, kdTreeEmptySpace, kdTreePerfectSplits, kdTreeLazy}) {
+            Point2D actual = tree.intersectWith(s);
 
-        assertTrue((expected != null) == (actual != null));
+            assertTrue((expected != null) == (actual != null));
 
-        if (expected != null) {
-            assertEquals(expected.getX(), actual.getX(), 10e-7);
-            assertEquals(expected.getY(), actual.getY(), 10e-7);
+            if (expected != null) {
+                assertEquals(expected.getX(), actual.getX(), 10e-7);
+                assertEquals(expected.getY(), actual.getY(), 10e-7);
+            }
+        }
+    }
+
+    @Property(trials = 10000)
+    public void everyStrategySameOutputAsNaiveImplementation(
+            @InRange(min="8604.9", max = "8630.5") double sx,
+            @InRange(min="50181.6", max="50193") double sy,
+            @InRange(min="8604.9", max = "8630.5") double ex,
+            @InRange(min="50181.6", max="50193") double ey) {
+        Segment s = new Segment(new Point2D(sx, sy), new Point2D(ex, ey));
+
+        Point2D expected = naive.intersectWith(s);
+
+        for (KDTree tree : kdTreesByStrategy) {
+            Point2D actual = tree.intersectWith(s);
+
+            assertTrue((expected != null) == (actual != null));
+
+            if (expected != null) {
+                assertEquals(expected.getX(), actual.getX(), 10e-7);
+                assertEquals(expected.getY(), actual.getY(), 10e-7);
+            }
+        }
+    }
+
+    @Property(trials = 100000)
+    public void occludedIffNaiveImplementationIntersects(
+            @InRange(min="8604.9", max = "8630.5") double sx,
+            @InRange(min="50181.6", max="50193") double sy,
+            @InRange(min="8604.9", max = "8630.5") double ex,
+            @InRange(min="50181.6", max="50193") double ey) {
+        Segment s = new Segment(new Point2D(sx, sy), new Point2D(ex, ey));
+
+        boolean expected = naive.intersectWith(s) != null;
+
+        assertEquals(expected, naive.isOccluded(s));
+        assertEquals(expected, kdTree.isOccluded(s));
+        assertEquals(expected, kdTreeWithRopes.isOccluded(s));
+        assertEquals(expected, kdTreeCompact.isOccluded(s));
+        assertEquals(expected, kdTreeOffHeap.isOccluded(s));
+    }
+
+    @Property(trials = 10000)
+    public void compactGeometrySameOutputAsDoubles(
+            @InRange(min="8604.9", max = "8630.5") double sx,
+            @InRange(min="50181.6", max="50193") double sy,
+            @InRange(min="8604.9", max = "8630.5") double ex,
+            @InRange(min="50181.6", max="50193") double ey) {
+        Segment s = new Segment(new Point2D(sx, sy), new Point2D(ex, ey));
+        // Nearly parallel to the original, grazing the same triangles
+        Segment t = new Segment(new Point2D(sx, sy), new Point2D(ex + 1e-6, ey - 1e-6));
+
+        for (Segment segment : new Segment[]{s, t}) {
+            Point2D expected = kdTree.intersectWith(segment);
+            Point2D actual = kdTreeCompact.intersectWith(segment);
+
+            assertTrue((expected != null) == (actual != null));
+            assertEquals(expected != null, kdTreeCompact.isOccluded(segment));
+
+            if (expected != null) {
+                assertEquals(expected.getX(), actual.getX(), 10e-7);
+                assertEquals(expected.getY(), actual.getY(), 10e-7);
+            }
+        }
+    }
+
+    @Test
+    public void compactGeometryTreeCopiesLikeDoubles() {
+        OffHeapKDTree offHeap = kdTreeCompact.toOffHeap();
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            Segment s = new Segment(start, end);
+            assertEquals(kdTreeCompact.intersectWith(s), offHeap.intersectWith(s));
+        }
+        assertEquals(kdTreeCompact.getExpectedCost(), kdTreeCompact.rebuildFor(new ArrayList<>()).getExpectedCost(), 0);
+    }
+
+    @Test
+    public void presortedBuildSameAsResorting() {
+        KDTree resorting = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withStrategy(BuildOptions.Strategy.SAH_RESORTING));
+        assertEquals(resorting.getExpectedCost(), kdTree.getExpectedCost(), 0);
+        assertTrue(kdTree.getExpectedCost() < triangles.size());
+    }
+
+    @Test
+    public void presortedPerfectSplitsSameAsResorting() {
+        KDTree resorting = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT
+                .withPerfectSplits(true)
+                .withStrategy(BuildOptions.Strategy.SAH_RESORTING));
+        assertEquals(resorting.getExpectedCost(), kdTreePerfectSplits.getExpectedCost(), 0);
+    }
+
+    @Test
+    public void parallelBuildSameAsSequential() {
+        for (boolean perfectSplits : new boolean[]{false, true}) {
+            BuildOptions options = BuildOptions.DEFAULT.withBuildReport(true).withPerfectSplits(perfectSplits);
+            BuildReport sequential = KDTree.fromTriangles(triangles, options).getBuildReport();
+            BuildReport parallel = KDTree.fromTriangles(triangles, options.withParallelBuild(true)).getBuildReport();
+            assertEquals(sequential.innerNodes, parallel.innerNodes);
+            assertEquals(sequential.leafReferences, parallel.leafReferences);
+            for (int depth = 0; depth <= sequential.getMaxDepth(); depth++) {
+                assertEquals(sequential.getLeavesAtDepth(depth), parallel.getLeavesAtDepth(depth));
+            }
+            assertEquals(sequential.expectedCost, parallel.expectedCost, 0);
+        }
+    }
+
+    @Test
+    public void buildReportDescribesTree() {
+        KDTree tree = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withBuildReport(true));
+        BuildReport report = tree.getBuildReport();
+        assertNotNull(report);
+        assertNull(kdTree.getBuildReport());
+
+        assertEquals(triangles.size(), report.triangles);
+        assertEquals(report.innerNodes + 1, report.leaves);
+        long leaves = 0;
+        for (int depth = 0; depth <= report.getMaxDepth(); depth++) {
+            leaves += report.getLeavesAtDepth(depth);
+        }
+        assertEquals(report.leaves, leaves);
+        assertEquals(report.leaves, report.leafSizes.getCount());
+        assertEquals(report.leafReferences, report.leafSizes.getSum());
+        assertEquals(0, report.emptyLeaves);
+        assertTrue(report.getDuplicationFactor() >= 1);
+        assertEquals(tree.getExpectedCost(), report.expectedCost, 0);
+        assertTrue(report.buildTime > 0);
+    }
+
+    @Test
+    public void lazyTreeBuildsSubtreesOnFirstQuery() {
+        for (BuildOptions.Strategy strategy : BuildOptions.Strategy.values()) {
+            KDTree lazy = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT
+                    .withStrategy(strategy)
+                    .withLazyDepth(4)
+                    .withBuildReport(true));
+            BuildReport report = lazy.getBuildReport();
+            final int deferred = lazy.getDeferredSubtrees();
+            assertTrue(deferred > 0);
+            assertEquals(deferred, report.deferredSubtrees);
+            assertEquals(0, report.leafReferences);
+
+            // A short segment only reaches the subtrees around it
+            lazy.intersectWith(new Segment(new Point2D(8617, 50187), new Point2D(8617.1, 50187.1)));
+            assertTrue(lazy.getDeferredSubtrees() < deferred);
+            assertTrue(lazy.getDeferredSubtrees() > 0);
+
+            Random random = new Random(0);
+            Segment[] segments = new Segment[1000];
+            for (int i = 0; i < segments.length; i++) {
+                Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+                Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+                segments[i] = new Segment(start, end);
+            }
+            // Several threads racing to build the same subtrees
+            Point2D[] actual = new Point2D[segments.length];
+            ParallelQueries.of(lazy, ForkJoinPool.commonPool(), 16).intersectAll(segments, actual);
+            for (int i = 0; i < segments.length; i++) {
+                assertEquals(kdTree.intersectWith(segments[i]), actual[i]);
+            }
+        }
+    }
+
+    @Test
+    public void budgetedQueriesDontBuildDeferredSubtrees() throws Exception {
+        KDTree lazy = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withLazyDepth(4));
+        Segment s = new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193));
+        QueryBudget budget = QueryBudget.UNLIMITED.withMaxNodes(1000000);
+        QueryBudget.Result result = lazy.intersectWith(s, budget);
+        assertFalse(result.nearest);
+        assertEquals(1, lazy.getExhaustedBudgets());
+
+        // The subtrees are built in the background, one per query giving up on them
+        for (int subtrees = 1; !result.nearest && subtrees <= 16; subtrees++) {
+            lazy.getBackgroundBuilds().get(30, TimeUnit.SECONDS);
+            result = lazy.intersectWith(s, budget);
+        }
+        assertTrue(result.nearest);
+        assertEquals(QueryBudget.Status.BLOCKED, result.status);
+        assertEquals(kdTree.intersectWith(s), result.intersection);
+    }
+
+    @Test
+    public void unlimitedQueriesBuildDeferredSubtrees() {
+        KDTree lazy = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withLazyDepth(4));
+        Segment s = new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193));
+        QueryBudget.Result result = lazy.intersectWith(s, QueryBudget.UNLIMITED);
+        assertEquals(QueryBudget.Status.BLOCKED, result.status);
+        assertEquals(kdTree.intersectWith(s), result.intersection);
+        assertEquals(0, lazy.getExhaustedBudgets());
+    }
+
+    @Test
+    public void autoTunedTreeSameOutputAsNaive() {
+        Random random = new Random(0);
+        List<Segment> workload = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            workload.add(new Segment(
+                    new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4),
+                    new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4)));
+        }
+        CostModel tuned = CostModel.autoTune(triangles, workload.subList(0, 500), BuildOptions.DEFAULT);
+        assertTrue(tuned.traversalCost > 0);
+
+        KDTree tree = KDTree.fromTriangles(triangles, BuildOptions.DEFAULT.withCostModel(tuned));
+        for (Segment s : workload) {
+            Point2D expected = naive.intersectWith(s);
+            Point2D actual = tree.intersectWith(s);
+            assertEquals(expected == null, actual == null);
+            if (expected != null) {
+                assertEquals(expected.getX(), actual.getX(), 10e-7);
+                assertEquals(expected.getY(), actual.getY(), 10e-7);
+            }
+        }
+    }
+
+    @Test
+    public void treeRebuiltForWorkloadIsCheaperForIt() {
+        // Short queries around a few spots, like ghosts chasing pacman through one corner of the map
+        Random random = new Random(0);
+        Point2D[] spots = new Point2D[4];
+        for (int i = 0; i < spots.length; i++) {
+            spots[i] = new Point2D(8612 + random.nextDouble() * 4, 50185 + random.nextDouble() * 2);
+        }
+        List<Segment> workload = new ArrayList<>();
+        for (int i = 0; i < 4000; i++) {
+            Point2D spot = spots[random.nextInt(spots.length)];
+            Point2D start = spot.add(random.nextGaussian() * 0.3, random.nextGaussian() * 0.3);
+            workload.add(new Segment(start, start.add(random.nextGaussian(), random.nextGaussian())));
+        }
+
+        KDTree tree = KDTree.fromTriangles(triangles);
+        QuerySample sample = new QuerySample(1000, new Random(0));
+        tree.setQuerySample(sample);
+        for (Segment s : workload.subList(0, 2000)) {
+            tree.intersectWith(s);
+        }
+        tree.setQuerySample(null);
+        tree.intersectWith(workload.get(0));
+        assertEquals(2000, sample.getRecorded());
+        assertEquals(1000, sample.getSegments().size());
+
+        // Compare on the queries the sample didn't see
+        KDTree rebuilt = tree.rebuildFor(sample.getSegments());
+        List<Segment> unseen = workload.subList(2000, workload.size());
+        assertTrue(rebuilt.measureCost(unseen) < tree.measureCost(unseen));
+        for (Segment s : unseen) {
+            Point2D expected = naive.intersectWith(s);
+            Point2D actual = rebuilt.intersectWith(s);
+            assertEquals(expected == null, actual == null);
+            if (expected != null) {
+                assertEquals(expected.getX(), actual.getX(), 10e-7);
+                assertEquals(expected.getY(), actual.getY(), 10e-7);
+            }
+        }
+    }
+
+    @Test
+    public void offHeapTreeReportsItsFootprint() {
+        assertTrue(kdTreeOffHeap.getOffHeapBytes() > 52L * triangles.size());
+    }
+
+    @Test
+    public void treeFilesTooLargeToMapAreRejected() throws IOException {
+        Path file = Files.createTempFile("tree", null);
+        try {
+            // A header claiming more triangle references than fit into a buffer
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(0x4b445431).putInt(1).putInt(1).putInt(OffHeapKDTree.MAX_REFERENCES + 1);
+            Files.write(file, header.array());
+            OffHeapKDTree.load(file);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("can't be kept off heap"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void externalBuildSameOutputAsNaive() throws IOException {
+        Path directory = Files.createTempDirectory("external");
+        Path triangleFile = directory.resolve("triangles");
+        Path treeFile = directory.resolve("tree");
+        try {
+            ExternalBuild.writeTriangles(triangles, triangleFile);
+            ExternalBuild build = ExternalBuild.DEFAULT.withMemoryLimit(64L << 10);
+            final int subtrees = build.build(triangleFile, treeFile);
+            assertTrue(subtrees > triangles.size() / build.getPartCapacity());
+            // Only the input and the tree are left
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals(2, files.count());
+            }
+
+            OffHeapKDTree tree = OffHeapKDTree.load(treeFile);
+            Random random = new Random(0);
+            for (int i = 0; i < 10000; i++) {
+                Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+                Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+                Segment s = new Segment(start, end);
+                Point2D expected = naive.intersectWith(s);
+                Point2D actual = tree.intersectWith(s);
+                assertEquals(expected == null, actual == null);
+                if (expected != null) {
+                    assertEquals(expected.getX(), actual.getX(), 10e-7);
+                    assertEquals(expected.getY(), actual.getY(), 10e-7);
+                }
+                assertEquals(expected != null, tree.isOccluded(s));
+            }
+        } finally {
+            Files.deleteIfExists(triangleFile);
+            Files.deleteIfExists(treeFile);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void mailboxingSkipsDuplicateTests() {
+        KDTree tree = KDTree.fromTriangles(triangles);
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            tree.intersectWith(new Segment(start, end));
+        }
+
+        assertTrue(tree.getTriangleTests() > 0);
+        assertTrue(tree.getSkippedTriangleTests() > 0);
+    }
+
+    @Test
+    public void statisticsCountWhatQueriesDo() {
+        KDTree tree = KDTree.fromTriangles(triangles);
+        TraversalStatistics statistics = new TraversalStatistics();
+        tree.setStatistics(statistics);
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            tree.intersectWith(new Segment(start, end));
+        }
+        assertEquals(tree.getTriangleTests(), statistics.triangleTests.getSum());
+        assertEquals(tree.getSkippedTriangleTests(), statistics.duplicateTests.getSum());
+
+        tree.setStatistics(null);
+        tree.intersectWith(new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193)));
+
+        assertEquals(1000, statistics.nodes.getCount());
+        assertEquals(1000, statistics.time.getCount());
+        assertTrue(statistics.leaves.getSum() > 0);
+        assertTrue(statistics.nodes.getSum() > statistics.leaves.getSum());
+        assertTrue(statistics.hitDepth.getCount() > 0);
+    }
+
+    /**
+     * A packet of rays sharing their end point, like ghosts looking at pacman.
+     */
+    @Property(trials = 10000)
+    public void batchOutputSameAsSingleQueries(
+            @InRange(min="8604.9", max = "8630.5") double ex,
+            @InRange(min="50181.6", max="50193") double ey,
+            long seed) {
+        Random random = new Random(seed);
+        Segment[] segments = new Segment[20];
+        for (int i = 0; i < segments.length; i++) {
+            Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            segments[i] = new Segment(start, new Point2D(ex, ey));
+        }
+
+        for (KDTree tree : new KDTree[]{kdTree, kdTreeCompact, kdTreeLazy}) {
+            Point2D[] actual = tree.intersectAll(segments);
+
+            for (int i = 0; i < segments.length; i++) {
+                Point2D expected = kdTree.intersectWith(segments[i]);
+
+                assertTrue((expected != null) == (actual[i] != null));
+
+                if (expected != null) {
+                    assertEquals(expected.getX(), actual[i].getX(), 10e-7);
+                    assertEquals(expected.getY(), actual[i].getY(), 10e-7);
+                }
+            }
+        }
+    }
+
+    /**
+     * A ghost watching pacman, who moves a little between queries.
+     */
+    @Property(trials = 1000)
+    public void hintedOutputSameAsUnhintedQueries(
+            @InRange(min="8604.9", max = "8630.5") double sx,
+            @InRange(min="50181.6", max="50193") double sy,
+            long seed) {
+        Random random = new Random(seed);
+        Point2D start = new Point2D(sx, sy);
+        Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+
+        for (KDTree tree : new KDTree[]{kdTree, kdTreeWithRopes, kdTreeCompact, kdTreeLazy}) {
+            QueryContext nearest = new QueryContext();
+            QueryContext any = new QueryContext();
+            for (int i = 0; i < 50; i++) {
+                end = end.add(random.nextGaussian() * 0.2, random.nextGaussian() * 0.2);
+                Segment s = new Segment(start, end);
+
+                Point2D expected = tree.intersectWith(s);
+                Point2D actual = tree.intersectWith(s, nearest);
+
+                assertTrue((expected != null) == (actual != null));
+                assertEquals(expected != null, tree.isOccluded(s, any));
+
+                if (expected != null) {
+                    assertEquals(expected.getX(), actual.getX(), 10e-7);
+                    assertEquals(expected.getY(), actual.getY(), 10e-7);
+                }
+            }
+        }
+    }
+
+    @Property(trials = 10000)
+    public void budgetedOutputSameAsUnlimitedUnlessUnknown(
+            @InRange(min="8604.9", max = "8630.5") double sx,
+            @InRange(min="50181.6", max="50193") double sy,
+            @InRange(min="8604.9", max = "8630.5") double ex,
+            @InRange(min="50181.6", max="50193") double ey,
+            @InRange(min="1", max="20") int maxNodes) {
+        Segment s = new Segment(new Point2D(sx, sy), new Point2D(ex, ey));
+
+        Point2D expected = kdTree.intersectWith(s);
+        QueryBudget.Result unlimited = kdTree.intersectWith(s, QueryBudget.UNLIMITED);
+        QueryBudget.Result limited = kdTree.intersectWith(s, QueryBudget.UNLIMITED.withMaxNodes(maxNodes));
+
+        assertEquals(expected == null ? QueryBudget.Status.VISIBLE : QueryBudget.Status.BLOCKED, unlimited.status);
+        assertEquals(expected, unlimited.intersection);
+        assertTrue(unlimited.nearest);
+        if (limited.status == QueryBudget.Status.UNKNOWN) {
+            assertNull(limited.intersection);
+        } else if (limited.nearest) {
+            assertEquals(unlimited.status, limited.status);
+            assertEquals(expected, limited.intersection);
+        } else {
+            // The intersection found proves the segment blocked, but a nearer one may have been missed
+            assertEquals(QueryBudget.Status.BLOCKED, limited.status);
+            assertTrue(naive.isOccluded(s));
+            assertTrue(s.getStart().distance(limited.intersection) >= s.getStart().distance(expected) - 10e-7);
+        }
+    }
+
+    @Property(trials = 100)
+    public void parallelOutputSameAsSingleQueries(long seed) {
+        Random random = new Random(seed);
+        Segment[] segments = new Segment[1000];
+        for (int i = 0; i < segments.length; i++) {
+            Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+            segments[i] = new Segment(start, end);
+        }
+
+        Point2D[] actual = new Point2D[segments.length];
+        double[] distances = new double[segments.length];
+        boolean[] occluded = new boolean[segments.length];
+        ParallelQueries queries = ParallelQueries.of(kdTree, ForkJoinPool.commonPool(), 16);
+        queries.intersectAll(segments, actual);
+        queries.intersectAll(segments, distances);
+        queries.isOccluded(segments, occluded);
+
+        Point2D[] batch = kdTree.intersectAll(segments);
+        for (int i = 0; i < segments.length; i++) {
+            Point2D expected = kdTree.intersectWith(segments[i]);
+            assertEquals(batch[i], actual[i]);
+            assertEquals(expected == null ? Double.POSITIVE_INFINITY : segments[i].getStart().distance(expected),
+                    distances[i], 10e-7);
+            assertEquals(expected != null, occluded[i]);
+        }
+    }
+
+    @Test
+    public void asyncOutputSameAsSingleQueries() {
+        Random random = new Random(0);
+        List<Segment> segments = new ArrayList<>();
+        List<CompletableFuture<Point2D>> nearest = new ArrayList<>();
+        List<CompletableFuture<Boolean>> occluded = new ArrayList<>();
+        try (AsyncQueries queries = AsyncQueries.of(kdTree, 10000, 100000, 32)) {
+            for (int i = 0; i < 1000; i++) {
+                Point2D start = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+                Point2D end = new Point2D(8604.9 + random.nextDouble() * 25.6, 50181.6 + random.nextDouble() * 11.4);
+                Segment s = new Segment(start, end);
+                segments.add(s);
+                nearest.add(queries.intersectWith(s));
+                occluded.add(queries.isOccluded(s));
+            }
+
+            for (int i = 0; i < segments.size(); i++) {
+                Point2D expected = kdTree.intersectWith(segments.get(i));
+                assertEquals(expected, nearest.get(i).join());
+                assertEquals(expected != null, occluded.get(i).join());
+            }
+            assertTrue(queries.getBatches() < 2000);
+        }
+    }
+
+    @Test
+    public void asyncQueriesRejectedWhenQueueIsFull() {
+        // A single thread, handing batches over only when it is idle
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new SynchronousQueue<>(), (r, e) -> {
+            try {
+                e.getQueue().put(r);
+            } catch (InterruptedException ex) {
+                throw new RejectedExecutionException(ex);
+            }
+        });
+        CompletableFuture<Void> blocker = new CompletableFuture<>();
+        // Keep the thread busy, so the dispatcher blocks and queries pile up
+        executor.execute(blocker::join);
+        Segment s = new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193));
+        try (AsyncQueries queries = AsyncQueries.of(kdTree, executor, 4, 0, 1)) {
+            List<CompletableFuture<Point2D>> futures = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                futures.add(queries.intersectWith(s));
+            }
+            assertTrue(queries.getRejectedQueries() > 0);
+            blocker.complete(null);
+
+            for (CompletableFuture<Point2D> future : futures) {
+                try {
+                    assertEquals(kdTree.intersectWith(s), future.join());
+                } catch (CompletionException e) {
+                    assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+            }
+            assertFalse(futures.get(0).isCompletedExceptionally());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncBulkQueriesCountTowardsCapacity() {
+        CountDownLatch release = new CountDownLatch(1);
+        // Holds up every query until released
+        SpatialDataStructure slow = s -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return kdTree.intersectWith(s);
+        };
+        final int capacity = 4 * Runtime.getRuntime().availableProcessors();
+        Segment s = new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193));
+        Point2D expected = kdTree.intersectWith(s);
+        try (AsyncQueries queries = AsyncQueries.of(slow, capacity, 0, 1)) {
+            List<CompletableFuture<Point2D[]>> futures = new ArrayList<>();
+            // Far more bulk queries than threads answering them
+            for (int i = 0; i < capacity / 2; i++) {
+                futures.add(queries.intersectAll(new Segment[]{s, s}));
+                // Not answered by the caller, even with all threads busy
+                assertFalse(futures.get(i).isDone());
+            }
+            assertTrue(queries.intersectAll(new Segment[]{s}).isCompletedExceptionally());
+            assertTrue(queries.intersectWith(s).isCompletedExceptionally());
+            assertEquals(2, queries.getRejectedQueries());
+
+            release.countDown();
+            for (CompletableFuture<Point2D[]> future : futures) {
+                assertArrayEquals(new Point2D[]{expected, expected}, future.join());
+            }
+            // The capacity is free again
+            assertEquals(expected, queries.intersectWith(s).join());
+        }
+    }
+
+    @Test
+    public void asyncQueriesCompleteWhenClosedConcurrently() throws Exception {
+        Segment s = new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193));
+        for (int run = 0; run < 50; run++) {
+            List<CompletableFuture<Point2D>> futures = new ArrayList<>();
+            Thread[] threads = new Thread[4];
+            try (AsyncQueries queries = AsyncQueries.of(kdTree, 100000, 0, 64)) {
+                for (int t = 0; t < threads.length; t++) {
+                    List<CompletableFuture<Point2D>> own = new ArrayList<>();
+                    threads[t] = new Thread(() -> {
+                        for (int i = 0; i < 2000; i++) {
+                            own.add(queries.intersectWith(s));
+                        }
+                        synchronized (futures) {
+                            futures.addAll(own);
+                        }
+                    });
+                    threads[t].start();
+                }
+                Thread.yield();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // Every query is either answered or rejected, none is left waiting
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                    .handle((result, t) -> null)
+                    .get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void asyncQueriesFailWhenClosedWhileBatching() throws Exception {
+        Segment s = new Segment(new Point2D(8604.9, 50181.6), new Point2D(8630.5, 50193));
+        CompletableFuture<Point2D> future;
+        try (AsyncQueries queries = AsyncQueries.of(kdTree, 16, TimeUnit.SECONDS.toNanos(2), 64)) {
+            future = queries.intersectWith(s);
+            // The dispatcher is waiting for more queries to join the batch
+            Thread.sleep(200);
+        }
+        try {
+            future.get(3, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
         }
     }
 }
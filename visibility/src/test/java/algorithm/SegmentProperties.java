@@ -10,6 +10,9 @@ import org.junit.runner.RunWith;
 import visibility.types.Intersection;
 import visibility.types.Segment;
 import visibility.types.Triangle;
+import visibility.types.TrianglePackKernel;
+
+import java.util.Random;
 
 import static org.jooq.lambda.tuple.Tuple.tuple;
 import static org.junit.Assert.*;
@@ -50,6 +53,55 @@ public class SegmentProperties {
         });
     }
 
+    @Property(trials = 1000000)
+    public void predicateAgreesWithIntersection(
+            @InRange(min = "-100", max = "100") double ax, @InRange(min = "-100", max = "100") double ay,
+            @InRange(min = "-100", max = "100") double bx, @InRange(min = "-100", max = "100") double by,
+            @InRange(min = "-100", max = "100") double cx, @InRange(min = "-100", max = "100") double cy,
+            @InRange(min = "0", max = "2") double sr, @InRange(min = "0", max = "360") double stheta,
+            @InRange(min = "0", max = "2") double er, @InRange(min = "0", max = "360") double etheta) {
+        Triangle t = new Triangle(new Point2D(ax, ay), new Point2D(bx, by), new Point2D(cx, cy));
+
+        computeCircumcircle(t).map((center, radius) -> {
+            Point2D start = polarToCartesian(sr * radius, stheta).add(center);
+            Point2D end = polarToCartesian(er * radius, etheta).add(center);
+            Segment s = new Segment(start, end);
+
+            assertEquals(s.intersectTriangle(t) != null, s.intersectsTriangle(t));
+            return null;
+        });
+    }
+
+    /**
+     * The vectorized kernel, where the Vector API is available, or else the default, tests packs
+     * like the scalar one.
+     */
+    @Property(trials = 100000)
+    public void packKernelsSameAsScalar(long seed, @InRange(min = "1", max = "8") int size) {
+        TrianglePackKernel kernel = TrianglePackKernel.VECTORIZED != null
+                ? TrianglePackKernel.VECTORIZED
+                : TrianglePackKernel.DEFAULT;
+        Random random = new Random(seed);
+        double[][] vertices = new double[6][Segment.PACK_SIZE + 1];
+        for (double[] coordinates : vertices) {
+            for (int i = 0; i < coordinates.length; i++) {
+                // Few distinct values, so that vertices often lie on the line
+                coordinates[i] = random.nextInt(5);
+            }
+        }
+        Segment s = new Segment(
+                new Point2D(random.nextInt(5), random.nextInt(5)),
+                new Point2D(random.nextInt(5) + random.nextDouble(), random.nextInt(5)));
+
+        for (int from = 0; from + size <= Segment.PACK_SIZE + 1; from++) {
+            assertEquals(
+                    s.linePassesTriangles(TrianglePackKernel.SCALAR, vertices[0], vertices[1], vertices[2],
+                            vertices[3], vertices[4], vertices[5], from, from + size),
+                    s.linePassesTriangles(kernel, vertices[0], vertices[1], vertices[2],
+                            vertices[3], vertices[4], vertices[5], from, from + size));
+        }
+    }
+
     private static boolean isApproximatelyInsideTriangle(Triangle t, Point2D p) {
         Point3D b = t.barycentricCoordinates(p);
         return b.getX() > -EPSILON && b.getY() > -EPSILON && b.getZ() > -EPSILON;
@@ -0,0 +1,45 @@
+package visibility.types;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+import static jdk.incubator.vector.VectorOperators.LE;
+
+/**
+ * {@link TrianglePackKernel#VECTORIZED}, testing one triangle per lane of the platform's preferred
+ * vector shape, e.g. 4 with AVX2 or 8 with AVX-512. Only loaded reflectively, since it needs the
+ * incubating Vector API, and computes exactly what {@link TrianglePackKernel#SCALAR} does.
+ */
+final class VectorTrianglePackKernel extends TrianglePackKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int linePassesTriangles(double sx, double sy, double ox, double oy,
+                                   double[] ax, double[] ay, double[] bx, double[] by, double[] cx, double[] cy,
+                                   int from, int to) {
+        int mask = 0;
+        for (int i = from; i < to; i += SPECIES.length()) {
+            final VectorMask<Double> inPack = SPECIES.indexInRange(i, to);
+            final DoubleVector oa = offset(ax, ay, i, inPack, sx, sy, ox, oy);
+            final DoubleVector ob = offset(bx, by, i, inPack, sx, sy, ox, oy);
+            final DoubleVector oc = offset(cx, cy, i, inPack, sx, sy, ox, oy);
+            final VectorMask<Double> passes = oa.mul(ob).compare(LE, 0)
+                    .or(ob.mul(oc).compare(LE, 0))
+                    .or(oc.mul(oa).compare(LE, 0))
+                    .and(inPack);
+            mask |= (int) passes.toLong() << (i - from);
+        }
+        return mask;
+    }
+
+    /**
+     * @return The signed distances of the vertices (x[i], y[i]) ... from the line, in the same
+     * order of operations as the scalar kernel.
+     */
+    private static DoubleVector offset(double[] x, double[] y, int i, VectorMask<Double> inPack,
+                                       double sx, double sy, double ox, double oy) {
+        return DoubleVector.fromArray(SPECIES, x, i, inPack).sub(sx).mul(ox)
+                .add(DoubleVector.fromArray(SPECIES, y, i, inPack).sub(sy).mul(oy));
+    }
+}